@@ -0,0 +1,61 @@
+package ie.atu.distributed.systems.benchmarks;
+
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZKUtil;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+// In-process ZooKeeper server with a plain client for setting up /services
+final class BenchmarkServer implements AutoCloseable {
+    static final String SERVICES_ZNODE = "/services";
+    static final int SESSION_TIMEOUT = 10000;
+
+    private final TestingServer server;
+    private final ZooKeeper zooKeeper;
+
+    BenchmarkServer() throws Exception {
+        server = new TestingServer(true);
+        CountDownLatch connected = new CountDownLatch(1);
+        zooKeeper = new ZooKeeper(server.getConnectString(), SESSION_TIMEOUT, event -> {
+            if (event.getState() == org.apache.zookeeper.Watcher.Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        });
+        connected.await();
+        zooKeeper.create(SERVICES_ZNODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    }
+
+    String getConnectString() {
+        return server.getConnectString();
+    }
+
+    ZooKeeper getZooKeeper() {
+        return zooKeeper;
+    }
+
+    // Create service0..service(count - 1) as persistent children of /services with pipelined creates
+    void createServices(int count) throws InterruptedException {
+        CountDownLatch created = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            zooKeeper.create(SERVICES_ZNODE + "/service" + i, ("host" + i + ":1234").getBytes(StandardCharsets.UTF_8),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, (rc, path, ctx, name) -> created.countDown(), null);
+        }
+        created.await();
+    }
+
+    @Override
+    public void close() throws Exception {
+        try {
+            ZKUtil.deleteRecursive(zooKeeper, SERVICES_ZNODE);
+        } catch (KeeperException ignored) {
+            // The server is going away anyway
+        }
+        zooKeeper.close();
+        server.close();
+    }
+}
@@ -0,0 +1,52 @@
+package ie.atu.distributed.systems.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cold initialise() time for a registry loading /services with a given number of children.
+// Connecting is done outside the measured call.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class InitialiseBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int serviceCount;
+
+    @Param({"ONE_SHOT", "PERSISTENT_RECURSIVE"})
+    public String watchMode;
+
+    private BenchmarkServer server;
+    private RegistryHandle registry;
+
+    @Setup(Level.Trial)
+    public void setUpServer() throws Exception {
+        server = new BenchmarkServer();
+        server.createServices(serviceCount);
+    }
+
+    @Setup(Level.Invocation)
+    public void connect() {
+        registry = new RegistryHandle(server.getConnectString(), BenchmarkServer.SESSION_TIMEOUT, watchMode);
+        registry.connectToZookeeper();
+    }
+
+    @TearDown(Level.Invocation)
+    public void disconnect() {
+        registry.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownServer() throws Exception {
+        server.close();
+    }
+
+    @Benchmark
+    public int initialise() {
+        registry.initialise();
+        return registry.getServices().size();
+    }
+}
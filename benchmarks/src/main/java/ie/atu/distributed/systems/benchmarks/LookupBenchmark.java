@@ -0,0 +1,56 @@
+package ie.atu.distributed.systems.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Throughput of getServices() lookups from several threads while the registry is idle
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LookupBenchmark {
+    private static final int SERVICE_COUNT = 1000;
+
+    private BenchmarkServer server;
+    private RegistryHandle registry;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer();
+        server.createServices(SERVICE_COUNT);
+        registry = new RegistryHandle(server.getConnectString(), BenchmarkServer.SESSION_TIMEOUT, "ONE_SHOT");
+        registry.connectToZookeeper();
+        registry.initialise();
+        names = new String[SERVICE_COUNT];
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            names[i] = "service" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.close();
+        server.close();
+    }
+
+    @Benchmark
+    public String lookup() {
+        return registry.getServices().get(names[ThreadLocalRandom.current().nextInt(SERVICE_COUNT)]);
+    }
+
+    @Benchmark
+    public void lookupAll(Blackhole blackhole) {
+        Map<String, String> services = registry.getServices();
+        for (String name : names) {
+            blackhole.consume(services.get(name));
+        }
+    }
+}
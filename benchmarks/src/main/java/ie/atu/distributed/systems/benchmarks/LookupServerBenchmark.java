@@ -0,0 +1,66 @@
+package ie.atu.distributed.systems.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Requests per second the LookupServer answers over loopback HTTP, from several client threads
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// As Application does; without it each connection is capped by the client's delayed ACK
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@Threads(8)
+public class LookupServerBenchmark {
+    private static final int SERVICE_COUNT = 1000;
+
+    private BenchmarkServer server;
+    private RegistryHandle registry;
+    private AutoCloseable lookupServer;
+    private HttpClient client;
+    private HttpRequest[] resolveRequests;
+    private HttpRequest snapshotRequest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer();
+        server.createServices(SERVICE_COUNT);
+        registry = new RegistryHandle(server.getConnectString(), BenchmarkServer.SESSION_TIMEOUT, "ONE_SHOT");
+        registry.connectToZookeeper();
+        registry.initialise();
+        lookupServer = registry.startLookupServer();
+
+        String base = "http://127.0.0.1:" + RegistryHandle.lookupServerPort(lookupServer);
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        resolveRequests = new HttpRequest[SERVICE_COUNT];
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            resolveRequests[i] = HttpRequest.newBuilder(URI.create(base + "/resolve/service" + i)).build();
+        }
+        snapshotRequest = HttpRequest.newBuilder(URI.create(base + "/snapshot")).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        lookupServer.close();
+        registry.close();
+        server.close();
+    }
+
+    @Benchmark
+    public String resolve() throws Exception {
+        HttpRequest request = resolveRequests[ThreadLocalRandom.current().nextInt(SERVICE_COUNT)];
+        return client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    @Benchmark
+    public String snapshot() throws Exception {
+        return client.send(snapshotRequest, HttpResponse.BodyHandlers.ofString()).body();
+    }
+}
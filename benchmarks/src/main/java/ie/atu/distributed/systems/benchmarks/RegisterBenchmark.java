@@ -0,0 +1,62 @@
+package ie.atu.distributed.systems.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+// Latency of register() for new services and for updates to an existing one. The registry stays
+// the same size throughout, and its logging is discarded, so later samples measure the same
+// work as earlier ones rather than copying and printing an ever larger registry.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegisterBenchmark {
+    private BenchmarkServer server;
+    private RegistryHandle registry;
+    private long counter;
+    private boolean registeredNew;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));  // register() logs the whole registry
+        server = new BenchmarkServer();
+        registry = new RegistryHandle(server.getConnectString(), BenchmarkServer.SESSION_TIMEOUT, "ONE_SHOT");
+        registry.connectToZookeeper();
+        registry.initialise();
+        registry.register("existing", "host:0");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.close();
+        server.close();
+        System.setOut(out);
+    }
+
+    // Remove the service registerNew() added, outside the measurement, so every call creates it afresh
+    @TearDown(Level.Invocation)
+    public void removeNew() {
+        if (registeredNew) {
+            registry.unregister("new");
+            registeredNew = false;
+        }
+    }
+
+    @Benchmark
+    public void registerNew() {
+        registry.register("new", "host:" + counter++);
+        registeredNew = true;
+    }
+
+    @Benchmark
+    public void registerUpdate() {
+        registry.register("existing", "host:" + counter++);
+    }
+}
@@ -0,0 +1,141 @@
+package ie.atu.distributed.systems.benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+
+// ServiceRegistry lives in the default package, which code in a named package can't refer to,
+// and JMH won't generate benchmarks for default-package classes. This wraps it with method
+// handles held in static finals, which the JIT inlines, so the indirection doesn't show up in
+// the measurements.
+final class RegistryHandle implements AutoCloseable {
+    private static final MethodHandle CONSTRUCTOR;
+    private static final MethodHandle CONNECT;
+    private static final MethodHandle INITIALISE;
+    private static final MethodHandle REGISTER;
+    private static final MethodHandle UNREGISTER;
+    private static final MethodHandle GET_SERVICES;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle LOOKUP_SERVER;
+    private static final MethodHandle LOOKUP_SERVER_PORT;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> registryClass = Class.forName("ServiceRegistry");
+            Class<?> watchModeClass = Class.forName("ServiceRegistry$WatchMode");
+            CONSTRUCTOR = lookup.findConstructor(registryClass,
+                    MethodType.methodType(void.class, String.class, int.class, watchModeClass))
+                    .asType(MethodType.methodType(Object.class, String.class, int.class, Object.class));
+            CONNECT = lookup.findVirtual(registryClass, "connectToZookeeper", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            INITIALISE = lookup.findVirtual(registryClass, "initialise", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            REGISTER = lookup.findVirtual(registryClass, "register", MethodType.methodType(void.class, String.class, String.class))
+                    .asType(MethodType.methodType(void.class, Object.class, String.class, String.class));
+            UNREGISTER = lookup.findVirtual(registryClass, "unregister", MethodType.methodType(void.class, String.class))
+                    .asType(MethodType.methodType(void.class, Object.class, String.class));
+            GET_SERVICES = lookup.findVirtual(registryClass, "getServices", MethodType.methodType(Map.class))
+                    .asType(MethodType.methodType(Map.class, Object.class));
+            CLOSE = lookup.findVirtual(registryClass, "close", MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(void.class, Object.class));
+            Class<?> lookupServerClass = Class.forName("LookupServer");
+            LOOKUP_SERVER = lookup.findConstructor(lookupServerClass, MethodType.methodType(void.class, registryClass, int.class))
+                    .asType(MethodType.methodType(AutoCloseable.class, Object.class, int.class));
+            LOOKUP_SERVER_PORT = lookup.findVirtual(lookupServerClass, "getPort", MethodType.methodType(int.class))
+                    .asType(MethodType.methodType(int.class, AutoCloseable.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object registry;
+
+    // Create a registry using the named ServiceRegistry.WatchMode
+    RegistryHandle(String zookeeperAddress, int sessionTimeout, String watchMode) {
+        try {
+            Object mode = Enum.valueOf(Class.forName("ServiceRegistry$WatchMode").asSubclass(Enum.class), watchMode);
+            registry = (Object) CONSTRUCTOR.invokeExact(zookeeperAddress, sessionTimeout, mode);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    void connectToZookeeper() {
+        try {
+            CONNECT.invokeExact(registry);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    void initialise() {
+        try {
+            INITIALISE.invokeExact(registry);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    void register(String serviceName, String serviceAddress) {
+        try {
+            REGISTER.invokeExact(registry, serviceName, serviceAddress);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    void unregister(String serviceName) {
+        try {
+            UNREGISTER.invokeExact(registry, serviceName);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, String> getServices() {
+        try {
+            return (Map<String, String>) GET_SERVICES.invokeExact(registry);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    // Start a LookupServer for this registry on any free loopback port
+    AutoCloseable startLookupServer() {
+        try {
+            return (AutoCloseable) LOOKUP_SERVER.invokeExact(registry, 0);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    static int lookupServerPort(AutoCloseable lookupServer) {
+        try {
+            return (int) LOOKUP_SERVER_PORT.invokeExact(lookupServer);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            CLOSE.invokeExact(registry);
+        } catch (Throwable e) {
+            throw propagate(e);
+        }
+    }
+
+    private static RuntimeException propagate(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+}
@@ -0,0 +1,56 @@
+package ie.atu.distributed.systems.benchmarks;
+
+import org.apache.zookeeper.KeeperException;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Time from a setData on a service's znode until the new address is visible in getServices()
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VisibilityBenchmark {
+    private static final int SERVICE_COUNT = 1000;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Param({"ONE_SHOT", "PERSISTENT_RECURSIVE"})
+    public String watchMode;
+
+    private BenchmarkServer server;
+    private RegistryHandle registry;
+    private long next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new BenchmarkServer();
+        server.createServices(SERVICE_COUNT);
+        registry = new RegistryHandle(server.getConnectString(), BenchmarkServer.SESSION_TIMEOUT, watchMode);
+        registry.connectToZookeeper();
+        registry.initialise();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        registry.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void setDataToVisible() throws KeeperException, InterruptedException {
+        // Cycles through the services, so each is changed many times over a run
+        String name = "service" + (next % SERVICE_COUNT);
+        String address = "moved:" + next++;
+        long start = System.nanoTime();
+        server.getZooKeeper().setData(BenchmarkServer.SERVICES_ZNODE + "/" + name, address.getBytes(StandardCharsets.UTF_8), -1);
+        while (!address.equals(registry.getServices().get(name))) {
+            if (System.nanoTime() - start > TIMEOUT_NANOS) {
+                throw new IllegalStateException(name + " update never became visible");
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -1,22 +1,71 @@
 import org.apache.zookeeper.KeeperException;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+// Registry agent: registers this process's services and keeps them registered until it is shut
+// down, when it removes them so that other clients see them go straight away rather than after
+// the session times out. Services come either from the command line or from a config file of
+// name=address lines, which is re-read when it changes. With --lookup-port it also serves the
+// registry to other local processes through a LookupServer.
 public class Application {
 
     private static final String ZOOKEEPER_ADDRESS = "localhost:2181";
     private static final int SESSION_TIMEOUT = 10000;
+    private static final long CONFIG_POLL_MILLIS = 5000;  // How often the config file is checked for changes
+
+    private final ServiceRegistry registry;
+    private final ExecutorService executor = newExecutor();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private Map<String, String> services = new HashMap<>();  // What's registered, as of the last config read
+    private volatile boolean running = true;
+    private LookupServer lookupServer;  // Null unless enabled with --lookup-port
+
+    Application(ServiceRegistry registry) {
+        this.registry = registry;
+    }
 
     public static void main(String[] args) throws InterruptedException, KeeperException, IOException {
-        if (args.length != 2) {
-            System.out.println("USAGE: service-registry.jar serviceName serviceAddress");
-            System.out.println("(The name and address that should be used to register this service should be provided as command-line arguments)");
+        Path configFile = null;
+        int lookupPort = -1;
+        List<String> service = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--config") && i + 1 < args.length) {
+                    configFile = Paths.get(args[++i]);
+                } else if (args[i].equals("--lookup-port") && i + 1 < args.length) {
+                    lookupPort = Integer.parseInt(args[++i]);
+                } else {
+                    service.add(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            service.clear();
+        }
+        if (configFile == null ? service.size() != 2 : !service.isEmpty()) {
+            System.out.println("USAGE: service-registry.jar serviceName serviceAddress [--lookup-port port]");
+            System.out.println("   or: service-registry.jar --config services.properties [--lookup-port port]");
+            System.out.println("(The name and address that should be used to register this service should be provided as command-line arguments,");
+            System.out.println("or a file of serviceName=serviceAddress lines to register many services)");
             System.exit(0);
         }
 
-        String serviceName = args[0];
-        String serviceAddress = args[1];
-
         System.out.println("Creating Service Registry");
         ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
         registry.connectToZookeeper();
@@ -24,10 +73,151 @@ public class Application {
         System.out.println("Initialising Service Registry");
         registry.initialise();
 
-        System.out.printf("Registering Service: %s, %s\n", serviceName, serviceAddress);
-        registry.register(serviceName, serviceAddress);
+        Application application = new Application(registry);
+        if (lookupPort >= 0) {
+            // See LookupServer; this process owns the JVM, so it can turn on TCP_NODELAY itself
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+            application.lookupServer = new LookupServer(registry, lookupPort);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(application::shutdown, "registry-shutdown"));
+        if (configFile == null) {
+            System.out.printf("Registering Service: %s, %s\n", service.get(0), service.get(1));
+            application.update(Map.of(service.get(0), service.get(1)));
+        } else {
+            application.watch(configFile);
+        }
+        application.awaitShutdown();
+    }
 
-        registry.run();
-        registry.close();
+    // Register the services in the config file, then check it for changes in the background
+    void watch(Path configFile) throws IOException, KeeperException, InterruptedException {
+        FileTime loaded = Files.getLastModifiedTime(configFile);
+        update(readConfig(configFile));
+        executor.execute(() -> {
+            FileTime seen = loaded;
+            while (running) {
+                try {
+                    Thread.sleep(CONFIG_POLL_MILLIS);
+                    FileTime modified = Files.getLastModifiedTime(configFile);
+                    if (!modified.equals(seen)) {
+                        System.out.println("Config file changed, re-reading " + configFile);
+                        update(readConfig(configFile));
+                        seen = modified;  // Not until it has all been applied, so a failure is retried
+                    }
+                } catch (InterruptedException e) {
+                    return;  // Shutting down
+                } catch (IOException | KeeperException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    static Map<String, String> readConfig(Path configFile) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(configFile, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        Map<String, String> services = new HashMap<>();
+        for (String serviceName : properties.stringPropertyNames()) {
+            services.put(serviceName, properties.getProperty(serviceName).trim());
+        }
+        return services;
+    }
+
+    // Bring the registered services in line with the given ones. The first set is registered in a
+    // few batched transactions; after that each added, changed or removed service is updated on
+    // its own thread, so a large change doesn't wait on one round trip at a time.
+    synchronized void update(Map<String, String> next) throws KeeperException, InterruptedException {
+        if (services.isEmpty()) {
+            registry.registerAll(next);
+            services = new HashMap<>(next);
+            return;
+        }
+
+        // The address each service is being moved to, or null if it is being removed
+        Map<String, String> targets = new HashMap<>();
+        Map<String, Future<?>> updates = new HashMap<>();
+        for (Map.Entry<String, String> service : next.entrySet()) {
+            if (!service.getValue().equals(services.get(service.getKey()))) {
+                targets.put(service.getKey(), service.getValue());
+                updates.put(service.getKey(), executor.submit(() -> {
+                    registry.register(service.getKey(), service.getValue());
+                    return null;
+                }));
+            }
+        }
+        for (String serviceName : services.keySet()) {
+            if (!next.containsKey(serviceName)) {
+                targets.put(serviceName, null);
+                updates.put(serviceName, executor.submit(() -> {
+                    registry.unregister(serviceName);
+                    return null;
+                }));
+            }
+        }
+        // Only record the updates that went through, so a failed one is tried again next time
+        Throwable failure = null;
+        for (Map.Entry<String, Future<?>> update : updates.entrySet()) {
+            try {
+                update.getValue().get();
+                String serviceAddress = targets.get(update.getKey());
+                if (serviceAddress == null) {
+                    services.remove(update.getKey());
+                } else {
+                    services.put(update.getKey(), serviceAddress);
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof KeeperException) {
+            throw (KeeperException) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    // Stop watching the config file, remove our services from ZooKeeper and disconnect
+    void shutdown() {
+        running = false;
+        if (lookupServer != null) {
+            lookupServer.close();
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(SESSION_TIMEOUT, TimeUnit.MILLISECONDS);
+            registry.unregisterAll();
+            registry.close();
+        } catch (KeeperException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    void awaitShutdown() throws InterruptedException {
+        stopped.await();
+    }
+
+    // One virtual thread per task when running on Java 21 or later (see the java21 profile in
+    // pom.xml), otherwise a cached pool of daemon threads. Looked up reflectively so the same
+    // source still builds for Java 17.
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task, "registry-agent");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 }
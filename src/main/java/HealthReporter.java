@@ -0,0 +1,171 @@
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Keeps the load and health in an instance's znode up to date, so that resolvers using
+// Strategy.WEIGHTED send less traffic to busy or unhealthy instances.
+//
+// The service calls record() and setHealth() as often as it likes; they only store the latest
+// values. Once per interval the reporter compares them with what it last wrote and, only if health
+// changed or the load moved by more than the threshold, writes a new payload with a
+// version-checked setData. So each instance writes at most once per interval, and a steady fleet
+// hardly writes at all. Every reporter shares one scheduler thread and writes asynchronously.
+//
+// If someone else has written the znode in the meantime, for instance an operator marking the
+// instance DEGRADED, the write is rejected and the reporter takes on what they wrote: their
+// health, weight and zone stand until the service next calls setHealth(), and later writes start
+// from their payload instead of putting the reporter's own back.
+public final class HealthReporter implements AutoCloseable {
+    static final long DEFAULT_INTERVAL_MILLIS = 5000;
+    static final double DEFAULT_THRESHOLD = 0.2;  // Relative change in in-flight or p99 worth writing
+    private static final int CPU_THRESHOLD_PERCENT = 10;  // Absolute change in CPU worth writing
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "health-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ServiceRegistry registry;
+    private final ServicePayload.Builder payload;
+    private final double threshold;
+    private final ScheduledFuture<?> schedule;
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    // Latest values from the service
+    private volatile int inFlight;
+    private volatile long p99Micros;
+    private volatile int cpuPercent;
+    private volatile ServicePayload.Health health = ServicePayload.Health.HEALTHY;
+
+    // What was last written, and the znode version it produced. Only touched by the write in progress.
+    private volatile String instancePath;
+    private volatile int version;
+    private int writtenInFlight = -1;
+    private long writtenP99Micros = -1;
+    private int writtenCpuPercent = -1;
+    private ServicePayload.Health writtenHealth;
+
+    // Report for an instance registered with ServiceRegistry.registerInstance(), whose payload was
+    // built from the given builder, checking every DEFAULT_INTERVAL_MILLIS
+    public HealthReporter(ServiceRegistry registry, String instancePath, ServicePayload.Builder payload) {
+        this(registry, instancePath, payload, DEFAULT_INTERVAL_MILLIS, DEFAULT_THRESHOLD);
+    }
+
+    // The reporter takes over the builder and sets its health and load before each write.
+    // threshold is the relative change in in-flight requests or p99 latency that gets written.
+    public HealthReporter(ServiceRegistry registry, String instancePath, ServicePayload.Builder payload,
+                          long intervalMillis, double threshold) {
+        this.registry = registry;
+        this.instancePath = instancePath;
+        this.payload = payload;
+        this.threshold = threshold;
+        this.version = 0;  // Freshly registered; corrected on the first write if not
+        // Start at a random point in the interval so a fleet started together doesn't write together
+        long initialDelay = ThreadLocalRandom.current().nextLong(intervalMillis) + 1;
+        schedule = SCHEDULER.scheduleAtFixedRate(this::tick, initialDelay, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Latest load figures: requests in flight, p99 latency in microseconds and CPU use from 0 to 100
+    public void record(int inFlight, long p99Micros, int cpuPercent) {
+        this.inFlight = inFlight;
+        this.p99Micros = p99Micros;
+        this.cpuPercent = cpuPercent;
+    }
+
+    // Replaces any health another writer has set since
+    public void setHealth(ServicePayload.Health health) {
+        this.health = health;
+    }
+
+    // Stop reporting. The znode keeps the last values written.
+    @Override
+    public void close() {
+        schedule.cancel(false);
+    }
+
+    void tick() {
+        if (!writing.compareAndSet(false, true)) {
+            return;  // The last write hasn't finished
+        }
+        int sampleInFlight = inFlight;
+        long sampleP99Micros = p99Micros;
+        int sampleCpuPercent = cpuPercent;
+        ServicePayload.Health sampleHealth = health;
+        if (!worthWriting(sampleInFlight, sampleP99Micros, sampleCpuPercent, sampleHealth)) {
+            writing.set(false);
+            return;
+        }
+
+        byte[] data = payload.health(sampleHealth).load(sampleInFlight, sampleP99Micros, sampleCpuPercent).encode();
+        String path = registry.currentInstancePath(instancePath);
+        instancePath = path;
+        ZooKeeper zooKeeper = registry.getZooKeeper();
+        RegistryMetrics metrics = registry.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        // Version-checked, so a payload written by anything else since is never overwritten blindly
+        zooKeeper.setData(path, data, version, (rc, writtenPath, ctx, stat) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (metrics.isEnabled()) {
+                metrics.zooKeeperCall(RegistryMetrics.Operation.SET_DATA, System.nanoTime() - start, code);
+            }
+            if (code == KeeperException.Code.OK) {
+                version = stat.getVersion();
+                writtenInFlight = sampleInFlight;
+                writtenP99Micros = sampleP99Micros;
+                writtenCpuPercent = sampleCpuPercent;
+                writtenHealth = sampleHealth;
+                registry.instanceUpdated(writtenPath, data);
+                writing.set(false);
+            } else if (code == KeeperException.Code.BADVERSION) {
+                // Written by someone else; take on what they wrote, and write on the next tick
+                zooKeeper.getData(writtenPath, false, (dataRc, dataPath, dataCtx, current, currentStat) -> {
+                    if (KeeperException.Code.get(dataRc) == KeeperException.Code.OK) {
+                        adopt(current, currentStat.getVersion());
+                    }
+                    writing.set(false);
+                }, null);
+            } else {
+                // NONODE: unregistered, or being registered again after the session expired, when
+                // it gets a new path and version. Either way, try again on the next tick.
+                if (code == KeeperException.Code.NONODE && !registry.currentInstancePath(writtenPath).equals(writtenPath)) {
+                    version = 0;
+                }
+                writing.set(false);
+            }
+        }, null);
+    }
+
+    // Take on a payload written by someone else, as if the reporter had written it itself
+    private void adopt(byte[] data, int currentVersion) {
+        version = currentVersion;
+        ServicePayload current = new ServicePayload().wrap(data);
+        if (current.isUnreadable()) {
+            return;  // Nothing to keep; the next write replaces it
+        }
+        health = current.health();
+        writtenHealth = current.health();
+        payload.weight(current.weight()).zone(current.zone());
+        writtenInFlight = current.hasLoad() ? current.inFlight() : -1;
+        writtenP99Micros = current.hasLoad() ? current.p99Micros() : -1;
+        writtenCpuPercent = current.hasLoad() ? current.cpuPercent() : -1;
+    }
+
+    // True if the sample differs enough from what was last written
+    private boolean worthWriting(int sampleInFlight, long sampleP99Micros, int sampleCpuPercent, ServicePayload.Health sampleHealth) {
+        return sampleHealth != writtenHealth
+                || changed(writtenInFlight, sampleInFlight)
+                || changed(writtenP99Micros, sampleP99Micros)
+                || Math.abs(sampleCpuPercent - writtenCpuPercent) >= CPU_THRESHOLD_PERCENT;
+    }
+
+    private boolean changed(long written, long sample) {
+        return Math.abs(sample - written) > threshold * Math.max(written, 1);
+    }
+}
@@ -0,0 +1,230 @@
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Immutable set of addresses for one service, with the lock-free state each pick strategy needs.
+// Everything is built when the set changes, so picking never allocates or blocks.
+final class InstanceSet {
+    static final int VIRTUAL_NODES = 64;  // Points on the consistent hash ring per instance
+    static final long LATENCY_SCALE_MICROS = 100_000;  // p99 latency that halves an instance's weight
+
+    private final long generation;
+    private final String[] addresses;
+    private final double[] cumulativeWeights;  // Running total of each address's routing weight
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final AtomicIntegerArray inFlight;
+    private final long[] ringHashes;
+    private final int[] ringOwners;
+
+    InstanceSet(long generation, String[] addresses) {
+        this(generation, addresses, null);
+    }
+
+    // Addresses with the routing weight of each, or null weights for all equal
+    InstanceSet(long generation, String[] addresses, double[] weights) {
+        this.generation = generation;
+        Integer[] order = new Integer[addresses.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> addresses[a].compareTo(addresses[b]));
+        this.addresses = new String[addresses.length];
+        double[] sortedWeights = new double[addresses.length];
+        for (int i = 0; i < order.length; i++) {
+            this.addresses[i] = addresses[order[i]];
+            sortedWeights[i] = weights == null ? 1 : weights[order[i]];
+        }
+        this.cumulativeWeights = cumulative(sortedWeights);
+        this.inFlight = new AtomicIntegerArray(this.addresses.length);
+
+        // Build the hash ring as parallel arrays sorted by hash
+        int points = this.addresses.length * VIRTUAL_NODES;
+        long[][] ring = new long[points][];
+        for (int i = 0; i < this.addresses.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring[i * VIRTUAL_NODES + v] = new long[]{hash(this.addresses[i] + "#" + v), i};
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.ringHashes = new long[points];
+        this.ringOwners = new int[points];
+        for (int p = 0; p < points; p++) {
+            ringHashes[p] = ring[p][0];
+            ringOwners[p] = (int) ring[p][1];
+        }
+    }
+
+    // Copy of a set with one address's weight changed, keeping its hash ring and in-flight counts
+    private InstanceSet(InstanceSet base, double[] cumulativeWeights) {
+        this.generation = base.generation;
+        this.addresses = base.addresses;
+        this.cumulativeWeights = cumulativeWeights;
+        this.inFlight = base.inFlight;
+        this.ringHashes = base.ringHashes;
+        this.ringOwners = base.ringOwners;
+    }
+
+    // This set with the given address's weight changed, or this set if it has no such address
+    InstanceSet reweighted(String address, double weight) {
+        int index = Arrays.binarySearch(addresses, address);
+        if (index < 0) {
+            return this;
+        }
+        double[] weights = new double[addresses.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = i == index ? weight : cumulativeWeights[i] - (i == 0 ? 0 : cumulativeWeights[i - 1]);
+        }
+        return new InstanceSet(this, cumulative(weights));
+    }
+
+    private static double[] cumulative(double[] weights) {
+        double[] totals = new double[weights.length];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            total += Math.max(weights[i], 0);
+            totals[i] = total;
+        }
+        return totals;
+    }
+
+    long getGeneration() {
+        return generation;
+    }
+
+    int size() {
+        return addresses.length;
+    }
+
+    String[] getAddresses() {
+        return addresses.clone();
+    }
+
+    // Next address in turn
+    String roundRobin() {
+        if (addresses.length == 0) {
+            return null;
+        }
+        return addresses[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % addresses.length];
+    }
+
+    // Uniformly random address
+    String random() {
+        if (addresses.length == 0) {
+            return null;
+        }
+        return addresses[ThreadLocalRandom.current().nextInt(addresses.length)];
+    }
+
+    // Random address, in proportion to its routing weight. If every weight is zero (nothing is
+    // healthy) it falls back to a uniformly random address rather than fail every request.
+    String weighted() {
+        int count = addresses.length;
+        if (count == 0) {
+            return null;
+        }
+        double total = cumulativeWeights[count - 1];
+        if (total <= 0) {
+            return random();
+        }
+        double point = ThreadLocalRandom.current().nextDouble(total);
+        // First address whose running total is above the point
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulativeWeights[mid] > point) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return addresses[low];
+    }
+
+    // Routing weight of an instance from its payload: its configured weight, halved while
+    // DEGRADED and zero while UNHEALTHY or DRAINING, then scaled down by the load it last reported.
+    // Spare CPU scales it directly (never below 5%), and it is divided by one more than the
+    // requests in flight and by one plus the p99 latency in units of LATENCY_SCALE_MICROS.
+    static double weightOf(ServicePayload payload) {
+        double weight = payload.weight();
+        switch (payload.health()) {
+            case HEALTHY:
+                break;
+            case DEGRADED:
+                weight /= 2;
+                break;
+            default:
+                return 0;
+        }
+        if (payload.hasLoad()) {
+            weight *= Math.max(0.05, (100 - payload.cpuPercent()) / 100.0);
+            weight /= 1 + payload.inFlight();
+            weight /= 1 + (double) payload.p99Micros() / LATENCY_SCALE_MICROS;
+        }
+        return weight;
+    }
+
+    // Of two random addresses, the one with fewer requests in flight. The chosen address counts as
+    // in flight until it is released.
+    String powerOfTwoChoices() {
+        int count = addresses.length;
+        if (count == 0) {
+            return null;
+        }
+        int chosen = 0;
+        if (count > 1) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(count);
+            int second = random.nextInt(count - 1);
+            if (second >= first) {
+                second++;
+            }
+            chosen = inFlight.get(second) < inFlight.get(first) ? second : first;
+        }
+        inFlight.incrementAndGet(chosen);
+        return addresses[chosen];
+    }
+
+    // Address owning the first ring point at or after the key's hash
+    String consistentHash(CharSequence key) {
+        if (addresses.length == 0) {
+            return null;
+        }
+        int point = Arrays.binarySearch(ringHashes, hash(key));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        if (point == ringHashes.length) {
+            point = 0;
+        }
+        return addresses[ringOwners[point]];
+    }
+
+    // Mark a request to the given address as finished
+    void release(String address) {
+        for (int i = 0; i < addresses.length; i++) {
+            if (addresses[i].equals(address)) {
+                if (inFlight.decrementAndGet(i) < 0) {
+                    inFlight.incrementAndGet(i);
+                }
+                return;
+            }
+        }
+    }
+
+    // 64-bit FNV-1a over the characters followed by a murmur finaliser, without allocating
+    static long hash(CharSequence value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
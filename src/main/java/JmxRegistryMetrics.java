@@ -0,0 +1,125 @@
+import org.apache.zookeeper.KeeperException;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Registry metrics kept in memory and published as an MXBean on the platform MBean server
+public class JmxRegistryMetrics implements RegistryMetrics, JmxRegistryMetricsMXBean {
+    private final Map<Operation, LatencyHistogram> calls = new EnumMap<>(Operation.class);
+    private final LatencyHistogram eventToPublish = new LatencyHistogram();
+    private final LatencyHistogram sessionRecovery = new LatencyHistogram();
+    private final LongAdder fullReloads = new LongAdder();
+    private final LongAdder incrementalReloads = new LongAdder();
+    private final LongAdder failedUpdates = new LongAdder();
+    private final LongAdder missedUpdates = new LongAdder();
+    private volatile int registrySize;
+    private ObjectName objectName;
+
+    // Constructor
+    public JmxRegistryMetrics() {
+        for (Operation operation : Operation.values()) {
+            calls.put(operation, new LatencyHistogram());
+        }
+    }
+
+    // Register with the platform MBean server as ie.atu.distributed.systems:type=ServiceRegistry,name=<name>
+    public ObjectName register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName("ie.atu.distributed.systems:type=ServiceRegistry,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    // Remove from the platform MBean server, if registered
+    public void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public void zooKeeperCall(Operation operation, long nanos, KeeperException.Code result) {
+        calls.get(operation).record(nanos, result != KeeperException.Code.OK);
+    }
+
+    @Override
+    public void snapshotPublished(long eventToPublishNanos) {
+        eventToPublish.record(eventToPublishNanos, false);
+    }
+
+    @Override
+    public void sessionRecovered(long nanos) {
+        sessionRecovery.record(nanos, false);
+    }
+
+    @Override
+    public void refreshStarted(boolean full) {
+        (full ? fullReloads : incrementalReloads).increment();
+    }
+
+    @Override
+    public void updateFailed() {
+        failedUpdates.increment();
+    }
+
+    @Override
+    public void updateMissed() {
+        missedUpdates.increment();
+    }
+
+    @Override
+    public void registrySize(int size) {
+        registrySize = size;
+    }
+
+    @Override
+    public Map<String, LatencySummary> getZooKeeperCalls() {
+        Map<String, LatencySummary> summaries = new LinkedHashMap<>();
+        for (Map.Entry<Operation, LatencyHistogram> call : calls.entrySet()) {
+            summaries.put(call.getKey().name(), call.getValue().summarise());
+        }
+        return summaries;
+    }
+
+    @Override
+    public LatencySummary getEventToPublish() {
+        return eventToPublish.summarise();
+    }
+
+    @Override
+    public LatencySummary getSessionRecovery() {
+        return sessionRecovery.summarise();
+    }
+
+    @Override
+    public long getFullReloads() {
+        return fullReloads.sum();
+    }
+
+    @Override
+    public long getIncrementalReloads() {
+        return incrementalReloads.sum();
+    }
+
+    @Override
+    public long getFailedUpdates() {
+        return failedUpdates.sum();
+    }
+
+    @Override
+    public long getMissedUpdates() {
+        return missedUpdates.sum();
+    }
+
+    @Override
+    public int getRegistrySize() {
+        return registrySize;
+    }
+}
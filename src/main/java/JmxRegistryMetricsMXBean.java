@@ -0,0 +1,23 @@
+import java.util.Map;
+
+// Registry metrics as seen over JMX
+public interface JmxRegistryMetricsMXBean {
+    // Latency of each ZooKeeper operation, keyed by operation name
+    Map<String, LatencySummary> getZooKeeperCalls();
+
+    // Time from receiving a watch event to publishing the snapshot it caused
+    LatencySummary getEventToPublish();
+
+    // Time taken to recover from each expired ZooKeeper session
+    LatencySummary getSessionRecovery();
+
+    long getFullReloads();
+
+    long getIncrementalReloads();
+
+    long getFailedUpdates();
+
+    long getMissedUpdates();
+
+    int getRegistrySize();
+}
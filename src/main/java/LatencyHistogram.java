@@ -0,0 +1,44 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram with one bucket per power of two nanoseconds. Percentiles are
+// reported as the upper bound of their bucket, so they are accurate to within a factor of two.
+final class LatencyHistogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos, boolean error) {
+        long value = Math.max(nanos, 0);
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+        count.increment();
+        totalNanos.add(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+        if (error) {
+            errors.increment();
+        }
+    }
+
+    LatencySummary summarise() {
+        long total = count.sum();
+        return new LatencySummary(total, errors.sum(),
+                total == 0 ? 0 : totalNanos.sum() / total / 1000,
+                percentile(total, 0.5) / 1000, percentile(total, 0.99) / 1000, maxNanos.get() / 1000);
+    }
+
+    // Upper bound of the bucket holding the given fraction of recorded values
+    private long percentile(long total, double fraction) {
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target && seen > 0) {
+                return i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,52 @@
+import java.beans.ConstructorProperties;
+
+// Point-in-time summary of a latency histogram, in microseconds
+public final class LatencySummary {
+    private final long count;
+    private final long errors;
+    private final long meanMicros;
+    private final long p50Micros;
+    private final long p99Micros;
+    private final long maxMicros;
+
+    @ConstructorProperties({"count", "errors", "meanMicros", "p50Micros", "p99Micros", "maxMicros"})
+    public LatencySummary(long count, long errors, long meanMicros, long p50Micros, long p99Micros, long maxMicros) {
+        this.count = count;
+        this.errors = errors;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    // How many of the recorded calls failed
+    public long getErrors() {
+        return errors;
+    }
+
+    public long getMeanMicros() {
+        return meanMicros;
+    }
+
+    public long getP50Micros() {
+        return p50Micros;
+    }
+
+    public long getP99Micros() {
+        return p99Micros;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + ", errors=" + errors + ", mean=" + meanMicros + "us, p50=" + p50Micros
+                + "us, p99=" + p99Micros + "us, max=" + maxMicros + "us";
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Delivers events to one RegistryListener on its executor. Each service with undelivered events
+// has its own queue, which runs as a single task at a time, so a service's events stay in order
+// without one slow service holding up the others. dispatch() never blocks, since it is called
+// while publishing, often on the ZooKeeper event thread. With EVERY_EVENT, once capacity events are
+// waiting awaitCapacity() blocks the refresh thread until the listener catches up, and any events
+// published meanwhile by other threads are merged into their service's last waiting event, so
+// at most capacity events plus one per service are ever waiting. With COALESCE a service's
+// waiting events are always merged, so at most one is waiting per service.
+final class ListenerDispatcher {
+    static final int DEFAULT_CAPACITY = 10_000;
+
+    private final RegistryListener listener;
+    private final Executor executor;
+    private final RegistryListener.Delivery delivery;
+    private final int capacity;
+    private final AtomicInteger waiting = new AtomicInteger();  // Undelivered events, counted for EVERY_EVENT
+    private final Object drained = new Object();  // Notified when waiting drops below capacity
+    private final Map<String, ServiceQueue> queues = new ConcurrentHashMap<>();
+
+    ListenerDispatcher(RegistryListener listener, Executor executor, RegistryListener.Delivery delivery, int capacity) {
+        this.listener = listener;
+        this.executor = executor;
+        this.delivery = delivery;
+        this.capacity = capacity;
+    }
+
+    RegistryListener getListener() {
+        return listener;
+    }
+
+    // Wait until fewer than capacity events are waiting for the listener
+    void awaitCapacity() throws InterruptedException {
+        if (waiting.get() < capacity) {
+            return;
+        }
+        synchronized (drained) {
+            while (waiting.get() >= capacity) {
+                drained.wait();
+            }
+        }
+    }
+
+    void dispatch(RegistryEvent event) {
+        boolean[] schedule = new boolean[1];
+        ServiceQueue queue = queues.compute(event.getServiceName(), (serviceName, current) -> {
+            ServiceQueue next = current == null ? new ServiceQueue(serviceName) : current;
+            if (delivery == RegistryListener.Delivery.COALESCE) {
+                next.add(event, true);
+            } else {
+                int before = next.events.size();
+                next.add(event, waiting.get() >= capacity);
+                int added = next.events.size() - before;
+                if (added > 0) {
+                    waiting.addAndGet(added);
+                } else if (added < 0) {
+                    delivered(-added);
+                }
+            }
+            schedule[0] = !next.scheduled;
+            next.scheduled = true;
+            return next;
+        });
+        if (schedule[0]) {
+            try {
+                executor.execute(queue);
+            } catch (RejectedExecutionException e) {
+                ServiceQueue dropped = queues.remove(event.getServiceName());
+                if (dropped != null) {
+                    delivered(dropped.events.size());  // Never will be, but nothing should wait for them
+                }
+            }
+        }
+    }
+
+    // Count events as no longer waiting, waking awaitCapacity() if that makes room
+    private void delivered(int count) {
+        if (delivery != RegistryListener.Delivery.EVERY_EVENT) {
+            return;
+        }
+        int now = waiting.addAndGet(-count);
+        if (now < capacity && now + count >= capacity) {
+            synchronized (drained) {
+                drained.notifyAll();
+            }
+        }
+    }
+
+    // Undelivered events for one service. Only touched inside queues.compute(), which locks it.
+    private final class ServiceQueue implements Runnable {
+        private final String serviceName;
+        private final ArrayDeque<RegistryEvent> events = new ArrayDeque<>();
+        private boolean scheduled;
+
+        ServiceQueue(String serviceName) {
+            this.serviceName = serviceName;
+        }
+
+        // Queue an event, or merge it into the last waiting one
+        void add(RegistryEvent event, boolean merge) {
+            if (merge && !events.isEmpty()) {
+                // Merge into one event from the first old address to the latest new one
+                RegistryEvent waiting = events.pollLast();
+                event = RegistryEvent.of(serviceName, waiting.getOldAddress(), event.getNewAddress(), event.getVersion());
+                if (event == null) {
+                    return;  // Added and removed again before the listener saw it
+                }
+            }
+            events.add(event);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                RegistryEvent[] next = new RegistryEvent[1];
+                queues.compute(serviceName, (name, current) -> {
+                    next[0] = events.poll();
+                    if (next[0] == null) {
+                        scheduled = false;
+                        return null;  // Drained, so drop the queue until the service changes again
+                    }
+                    return current;
+                });
+                if (next[0] == null) {
+                    return;
+                }
+                delivered(1);
+                try {
+                    listener.onEvent(next[0]);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Serves the registry over HTTP on the loopback interface, so that processes which can't embed
+// ServiceRegistry share this process's ZooKeeper session instead of each opening their own.
+// Everything is answered from the in-memory snapshot; nothing here calls ZooKeeper.
+//   GET /resolve/<name>                    the service's address, or 404
+//   GET /snapshot                          every service as name=address lines
+//   GET /events?since=<seq>[&timeout=<ms>] changes after event <seq>, one per line as
+//                                          "<seq> <added|changed|removed> <name> <address>",
+//                                          waiting up to timeout ms (default 30s) for the first
+// Every response carries X-Event-Sequence, the sequence number of the latest event it reflects.
+// A client takes a snapshot, then polls for events since that sequence number. Events carry
+// whole addresses, so one that is already in the snapshot can safely be applied again. If the
+// client falls more than EVENT_HISTORY events behind, /events answers 410 and it should take a
+// new snapshot.
+// Run the JVM with -Dsun.net.httpserver.nodelay=true. The JDK server writes a response's headers
+// and body separately, and without TCP_NODELAY the body waits on the client's delayed ACK, capping
+// each connection at about 25 requests a second. The property is JVM-wide and only read when the
+// first HttpServer is created, so it is left to whoever starts the JVM; Application sets it itself.
+public final class LookupServer implements AutoCloseable {
+    static final int EVENT_HISTORY = 10_000;  // Events kept for clients that are behind
+    private static final long DEFAULT_POLL_TIMEOUT_MILLIS = 30_000;
+    private static final long MAX_POLL_TIMEOUT_MILLIS = 120_000;
+    private static final String SEQUENCE_HEADER = "X-Event-Sequence";
+
+    private final ServiceRegistry registry;
+    private final HttpServer server;
+    private final ExecutorService executor = Application.newExecutor();
+    private final RegistryListener listener = this::onEvent;
+
+    // Recent events, oldest first, and the sequence number of the newest. Guarded by itself.
+    private final ArrayDeque<SequencedEvent> events = new ArrayDeque<>();
+    private long sequence;
+    // Completed, and replaced, when the next event arrives; long polls wait on it
+    private CompletableFuture<Void> nextEvent = new CompletableFuture<>();
+
+    // Start serving on the given loopback port, or any free one if it is 0
+    public LookupServer(ServiceRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        // Events are recorded on the publishing thread, so they keep the order they were published in
+        registry.addListener(listener, Runnable::run, RegistryListener.Delivery.EVERY_EVENT);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(executor);
+        server.createContext("/resolve/", this::resolve);
+        server.createContext("/snapshot", this::snapshot);
+        server.createContext("/events", this::events);
+        server.start();
+        System.out.println("Lookup server listening on " + server.getAddress());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        registry.removeListener(listener);
+        server.stop(0);
+        executor.shutdownNow();
+        synchronized (events) {
+            nextEvent.complete(null);  // Let waiting long polls finish
+        }
+    }
+
+    private void onEvent(RegistryEvent event) {
+        CompletableFuture<Void> arrived;
+        synchronized (events) {
+            events.add(new SequencedEvent(++sequence, event));
+            if (events.size() > EVENT_HISTORY) {
+                events.poll();
+            }
+            arrived = nextEvent;
+            nextEvent = new CompletableFuture<>();
+        }
+        arrived.complete(null);
+    }
+
+    private long currentSequence() {
+        synchronized (events) {
+            return sequence;
+        }
+    }
+
+    private void resolve(HttpExchange exchange) throws IOException {
+        String serviceName = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring("/resolve/".length()), StandardCharsets.UTF_8);
+        long seq = currentSequence();
+        String serviceAddress = registry.getSnapshot().get(serviceName);
+        if (serviceAddress == null) {
+            respond(exchange, 404, seq, "");
+        } else {
+            respond(exchange, 200, seq, serviceAddress + "\n");
+        }
+    }
+
+    private void snapshot(HttpExchange exchange) throws IOException {
+        // Read the sequence number first: any event after it is then at worst already applied
+        long seq = currentSequence();
+        Map<String, String> services = registry.getServices();
+        StringBuilder body = new StringBuilder(services.size() * 32);
+        for (Map.Entry<String, String> service : services.entrySet()) {
+            body.append(service.getKey()).append('=').append(service.getValue()).append('\n');
+        }
+        respond(exchange, 200, seq, body.toString());
+    }
+
+    private void events(HttpExchange exchange) throws IOException {
+        long since;
+        long timeout;
+        try {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            since = Long.parseLong(query.getOrDefault("since", "0"));
+            timeout = Math.min(MAX_POLL_TIMEOUT_MILLIS, Long.parseLong(query.getOrDefault("timeout", String.valueOf(DEFAULT_POLL_TIMEOUT_MILLIS))));
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, currentSequence(), "since and timeout must be numbers\n");
+            return;
+        }
+
+        CompletableFuture<Void> arrived;
+        synchronized (events) {
+            arrived = since == sequence ? nextEvent : null;
+        }
+        if (arrived == null) {
+            answerEvents(exchange, since);
+            return;
+        }
+        // Nothing new yet: hand the exchange back without holding a thread, and answer it when
+        // the next event arrives or the timeout passes
+        arrived.copy().completeOnTimeout(null, timeout, TimeUnit.MILLISECONDS).thenRunAsync(() -> {
+            try {
+                answerEvents(exchange, since);
+            } catch (IOException e) {
+                exchange.close();  // Client went away
+            }
+        }, executor).exceptionally(error -> {
+            exchange.close();  // Shutting down
+            return null;
+        });
+    }
+
+    // Answer with the events after since. The response is built holding the lock but written
+    // without it, so a slow client can't hold up the registry.
+    private void answerEvents(HttpExchange exchange, long since) throws IOException {
+        int status;
+        long seq;
+        StringBuilder body = new StringBuilder();
+        synchronized (events) {
+            seq = sequence;
+            SequencedEvent oldest = events.peek();
+            if (since > sequence || (oldest != null && since < oldest.sequence - 1)) {
+                status = 410;
+                body.append("Events after ").append(since).append(" are no longer available, take a new snapshot\n");
+            } else if (since == sequence) {
+                status = 204;
+            } else {
+                status = 200;
+                for (SequencedEvent event : events) {
+                    if (event.sequence > since) {
+                        event.appendTo(body);
+                    }
+                }
+            }
+        }
+        respond(exchange, status, seq, body.toString());
+    }
+
+    private static void respond(HttpExchange exchange, int status, long seq, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.getResponseHeaders().set(SEQUENCE_HEADER, String.valueOf(seq));
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        if (query == null || query.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, String> parameters = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                parameters.put(pair.substring(0, equals), URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return parameters;
+    }
+
+    private static final class SequencedEvent {
+        final long sequence;
+        final RegistryEvent event;
+
+        SequencedEvent(long sequence, RegistryEvent event) {
+            this.sequence = sequence;
+            this.event = event;
+        }
+
+        void appendTo(StringBuilder body) {
+            String type;
+            if (event instanceof RegistryEvent.ServiceAdded) {
+                type = "added";
+            } else if (event instanceof RegistryEvent.ServiceRemoved) {
+                type = "removed";
+            } else {
+                type = "changed";
+            }
+            String address = event.getNewAddress() != null ? event.getNewAddress() : event.getOldAddress();
+            body.append(sequence).append(' ').append(type).append(' ').append(event.getServiceName()).append(' ').append(address).append('\n');
+        }
+    }
+}
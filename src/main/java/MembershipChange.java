@@ -0,0 +1,60 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+// Services that joined and left between two registry snapshots
+public final class MembershipChange {
+    static final MembershipChange NONE = new MembershipChange(Collections.emptySet(), Collections.emptySet());
+
+    private final Set<String> added;
+    private final Set<String> removed;
+
+    private MembershipChange(Set<String> added, Set<String> removed) {
+        this.added = added;
+        this.removed = removed;
+    }
+
+    // The change made by adding and removing the given services, which are not copied
+    static MembershipChange of(Set<String> added, Set<String> removed) {
+        if (added.isEmpty() && removed.isEmpty()) {
+            return NONE;
+        }
+        return new MembershipChange(Collections.unmodifiableSet(added), Collections.unmodifiableSet(removed));
+    }
+
+    // Merge changes made one after another, such as the refreshes of several shards
+    static MembershipChange combine(Collection<MembershipChange> changes) {
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        for (MembershipChange change : changes) {
+            added.removeAll(change.removed);
+            removed.removeAll(change.added);
+            added.addAll(change.added);
+            removed.addAll(change.removed);
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return NONE;
+        }
+        return new MembershipChange(Collections.unmodifiableSet(added), Collections.unmodifiableSet(removed));
+    }
+
+    // Names of services that joined
+    public Set<String> getAdded() {
+        return added;
+    }
+
+    // Names of services that left
+    public Set<String> getRemoved() {
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "added=" + added + ", removed=" + removed;
+    }
+}
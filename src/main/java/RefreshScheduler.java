@@ -0,0 +1,73 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+// Runs registry refreshes on a dedicated thread, away from the ZooKeeper event thread. Requests
+// are merged: at most one refresh runs and at most one more is queued behind it, however many
+// events arrive. A queued refresh waits for the debounce window first, so a burst of events
+// becomes a single refresh.
+final class RefreshScheduler {
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "registry-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean queued = new AtomicBoolean();
+    private final AtomicLong firstEventTime = new AtomicLong();
+    // Runs a refresh for events first received at the given time
+    private final LongFunction<CompletableFuture<?>> refresh;
+    private volatile long debounceMillis;
+
+    RefreshScheduler(LongFunction<CompletableFuture<?>> refresh, long debounceMillis) {
+        this.refresh = refresh;
+        this.debounceMillis = debounceMillis;
+    }
+
+    void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+    }
+
+    // Ask for a refresh. Does nothing if one is already queued, as it will see this change too.
+    void request(long eventTime) {
+        if (queued.compareAndSet(false, true)) {
+            firstEventTime.set(eventTime);
+            try {
+                executor.schedule(this::run, debounceMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed, so there is nothing left to refresh
+            }
+        }
+    }
+
+    // Run other work, such as reading a single service, on the refresh thread
+    void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed, so there is nothing left to refresh
+        }
+    }
+
+    private void run() {
+        // Events from here on need another refresh, since this one may already have read past them
+        long eventTime = firstEventTime.get();
+        queued.set(false);
+        try {
+            refresh.apply(eventTime).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Already reported by the refresh itself
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+}
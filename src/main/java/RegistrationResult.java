@@ -0,0 +1,37 @@
+// Outcome of registering a service
+public final class RegistrationResult {
+    private final String serviceName;
+    private final String serviceAddress;
+    private final boolean created;
+    private final int version;
+
+    RegistrationResult(String serviceName, String serviceAddress, boolean created, int version) {
+        this.serviceName = serviceName;
+        this.serviceAddress = serviceAddress;
+        this.created = created;
+        this.version = version;
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    public String getServiceAddress() {
+        return serviceAddress;
+    }
+
+    // True if the service's znode was created, false if an existing one was updated
+    public boolean isCreated() {
+        return created;
+    }
+
+    // Data version of the service's znode after the write
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return serviceName + "=" + serviceAddress + (created ? " (created" : " (updated") + ", version " + version + ")";
+    }
+}
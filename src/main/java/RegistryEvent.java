@@ -0,0 +1,69 @@
+// A change to one service in the registry, as pushed to a RegistryListener
+public abstract class RegistryEvent {
+    private final String serviceName;
+    private final String oldAddress;
+    private final String newAddress;
+    private final int version;
+
+    private RegistryEvent(String serviceName, String oldAddress, String newAddress, int version) {
+        this.serviceName = serviceName;
+        this.oldAddress = oldAddress;
+        this.newAddress = newAddress;
+        this.version = version;
+    }
+
+    // Event for a service going from one address to another, where null means not registered.
+    // Returns null if the service wasn't registered before or after.
+    static RegistryEvent of(String serviceName, String oldAddress, String newAddress, int version) {
+        if (oldAddress == null) {
+            return newAddress == null ? null : new ServiceAdded(serviceName, newAddress, version);
+        }
+        if (newAddress == null) {
+            return new ServiceRemoved(serviceName, oldAddress, version);
+        }
+        return new ServiceAddressChanged(serviceName, oldAddress, newAddress, version);
+    }
+
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    // Address before the change, or null for ServiceAdded
+    public String getOldAddress() {
+        return oldAddress;
+    }
+
+    // Address after the change, or null for ServiceRemoved
+    public String getNewAddress() {
+        return newAddress;
+    }
+
+    // Data version of the service's znode after the change (the last one seen, for ServiceRemoved),
+    // or -1 if unknown
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + serviceName + ": " + oldAddress + " -> " + newAddress + ", version=" + version + "]";
+    }
+
+    public static final class ServiceAdded extends RegistryEvent {
+        ServiceAdded(String serviceName, String newAddress, int version) {
+            super(serviceName, null, newAddress, version);
+        }
+    }
+
+    public static final class ServiceRemoved extends RegistryEvent {
+        ServiceRemoved(String serviceName, String oldAddress, int version) {
+            super(serviceName, oldAddress, null, version);
+        }
+    }
+
+    public static final class ServiceAddressChanged extends RegistryEvent {
+        ServiceAddressChanged(String serviceName, String oldAddress, String newAddress, int version) {
+            super(serviceName, oldAddress, newAddress, version);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+// Receives registry changes as they are published, instead of polling getServices().
+// Added with ServiceRegistry.addListener(); events for the same service arrive in order, one at a
+// time, while events for different services may be delivered in parallel by the executor.
+public interface RegistryListener {
+    // What to do when the listener falls behind
+    enum Delivery {
+        // Queue every event. Once the queue is full the registry stops reading changes until the
+        // listener catches up; changes it can't hold back, such as watch events applied directly in
+        // PERSISTENT_RECURSIVE mode, subscriptions and this process's own registrations, are then
+        // merged per service as with COALESCE, so the queue stays bounded.
+        EVERY_EVENT,
+        // Merge each service's undelivered events into one, so a slow listener never holds up the registry
+        COALESCE
+    }
+
+    void onEvent(RegistryEvent event);
+}
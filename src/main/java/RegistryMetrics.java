@@ -0,0 +1,57 @@
+import org.apache.zookeeper.KeeperException;
+
+// Receives measurements from ServiceRegistry. Every method defaults to doing nothing, and the
+// registry skips reading the clock altogether when given NOOP, so leaving metrics off costs nothing.
+public interface RegistryMetrics {
+    // ZooKeeper operations whose latency is recorded
+    enum Operation {
+        GET_CHILDREN,
+        GET_DATA,
+        EXISTS,
+        CREATE,
+        SET_DATA,
+        DELETE,
+        MULTI
+    }
+
+    RegistryMetrics NOOP = new RegistryMetrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    // Whether the registry should take timings at all
+    default boolean isEnabled() {
+        return true;
+    }
+
+    // A ZooKeeper call finished with the given result after the given time
+    default void zooKeeperCall(Operation operation, long nanos, KeeperException.Code result) {
+    }
+
+    // A snapshot was published the given time after the watch event that caused it was received
+    default void snapshotPublished(long eventToPublishNanos) {
+    }
+
+    // A refresh started, either a full reload of /services or an incremental update
+    default void refreshStarted(boolean full) {
+    }
+
+    // A refresh failed, so the registry may be out of date until the next one
+    default void updateFailed() {
+    }
+
+    // A refresh was thrown away because a newer one had already been published
+    default void updateMissed() {
+    }
+
+    // The ZooKeeper session expired and was replaced, with registrations and watches restored, in
+    // the given time
+    default void sessionRecovered(long nanos) {
+    }
+
+    // The registry now holds this many services
+    default void registrySize(int size) {
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Immutable, versioned view of the registry. A new snapshot is built off to the side for every
+// change and published with a single write, so readers always see a complete registry.
+// Alongside each address it keeps the service's raw znode payload, the zxid the znode was last
+// modified at and its data version, where these are known (they aren't, for example, for a
+// service this process just registered in a batch). Addresses are only decoded from payloads, and
+// the name to address map only built, when something asks for them. A service whose binary
+// payload can't be read has no address, and is left out of getServices() and listener events.
+public final class RegistrySnapshot {
+    // What the registry knows about one service
+    static final class Entry {
+        // Stands for "no address" once decoded, so that null can mean "not decoded yet"
+        private static final String UNREADABLE = new String();
+
+        final byte[] payload;
+        final long zxid;     // 0 if unknown
+        final int version;   // -1 if unknown
+        private volatile String address;  // Decoded on first use; entries are shared by later snapshots
+
+        Entry(byte[] payload, long zxid, int version) {
+            this.payload = payload;
+            this.zxid = zxid;
+            this.version = version;
+        }
+
+        // The service's address, or null if its payload can't be read
+        String address() {
+            String decoded = address;
+            if (decoded == null) {
+                ServicePayload reader = new ServicePayload().wrap(payload);
+                decoded = reader.isUnreadable() ? UNREADABLE : reader.address();
+                address = decoded;
+            }
+            return decoded == UNREADABLE ? null : decoded;
+        }
+    }
+
+    static final RegistrySnapshot EMPTY = new RegistrySnapshot(0, Collections.emptyMap(), false, Collections.emptySet());
+
+    private final long version;
+    private final Map<String, Entry> entries;
+    private volatile Map<String, String> services;  // Built on first use
+    private final boolean stale;
+    // Services that may differ from the previous snapshot, or null if any of them may
+    private final Set<String> changed;
+
+    private RegistrySnapshot(long version, Map<String, Entry> entries, boolean stale, Set<String> changed) {
+        this.version = version;
+        this.entries = Collections.unmodifiableMap(entries);
+        this.stale = stale;
+        this.changed = changed;
+    }
+
+    // Snapshot read back from the on-disk cache, marked stale until reconciled with ZooKeeper
+    static RegistrySnapshot cached(long version, Map<String, Entry> entries) {
+        return new RegistrySnapshot(version, entries, true, null);
+    }
+
+    // Version of this snapshot, incremented every time a new snapshot is published
+    public long getVersion() {
+        return version;
+    }
+
+    // Unmodifiable map of service name to address
+    public Map<String, String> getServices() {
+        Map<String, String> built = services;
+        if (built == null) {
+            Map<String, String> addresses = new HashMap<>(entries.size() * 4 / 3 + 1);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                String address = entry.getValue().address();
+                if (address != null) {
+                    addresses.put(entry.getKey(), address);
+                }
+            }
+            built = Collections.unmodifiableMap(addresses);
+            services = built;
+        }
+        return built;
+    }
+
+    // Address of a service, or null if it isn't registered or its payload can't be read
+    public String get(String serviceName) {
+        Entry entry = entries.get(serviceName);
+        return entry == null ? null : entry.address();
+    }
+
+    // Point the given flyweight at a service's payload, returning false if the service isn't
+    // registered. Nothing is copied, so this is cheap enough to call for every routing decision.
+    public boolean readPayload(String serviceName, ServicePayload payload) {
+        Entry entry = entries.get(serviceName);
+        if (entry == null) {
+            return false;
+        }
+        payload.wrap(entry.payload);
+        return true;
+    }
+
+    // Raw payload of a service, or null. Shared with the snapshot, so it must not be modified.
+    byte[] getPayload(String serviceName) {
+        Entry entry = entries.get(serviceName);
+        return entry == null ? null : entry.payload;
+    }
+
+    // zxid of the last change to a service's znode, or 0 if unknown
+    public long getZxid(String serviceName) {
+        Entry entry = entries.get(serviceName);
+        return entry == null ? 0 : entry.zxid;
+    }
+
+    // Data version of a service's znode, or -1 if unknown
+    public int getServiceVersion(String serviceName) {
+        Entry entry = entries.get(serviceName);
+        return entry == null ? -1 : entry.version;
+    }
+
+    // True if this came from the on-disk cache and hasn't yet been checked against ZooKeeper
+    public boolean isStale() {
+        return stale;
+    }
+
+    public int size() {
+        return getServices().size();
+    }
+
+    Entry getEntry(String serviceName) {
+        return entries.get(serviceName);
+    }
+
+    // Services that may have changed since the previous snapshot, or null if any of them may have
+    Set<String> getChanged() {
+        return changed;
+    }
+
+    // Next snapshot, replacing the whole contents with freshly loaded services
+    RegistrySnapshot replace(SnapshotLoader.Loaded loaded) {
+        return new RegistrySnapshot(version + 1, new HashMap<>(loaded.entries), false, null);
+    }
+
+    // Next snapshot, with one service added or changed
+    RegistrySnapshot with(String serviceName, byte[] payload, long zxid, int serviceVersion) {
+        Map<String, Entry> copy = new HashMap<>(entries);
+        copy.put(serviceName, new Entry(payload, zxid, serviceVersion));
+        return new RegistrySnapshot(version + 1, copy, stale, Collections.singleton(serviceName));
+    }
+
+    // Next snapshot, with several services this process registered added or changed
+    RegistrySnapshot withAll(Map<String, byte[]> changed) {
+        Map<String, Entry> copy = new HashMap<>(entries);
+        for (Map.Entry<String, byte[]> service : changed.entrySet()) {
+            copy.put(service.getKey(), new Entry(service.getValue(), 0, -1));
+        }
+        return new RegistrySnapshot(version + 1, copy, stale, new HashSet<>(changed.keySet()));
+    }
+
+    // Next snapshot, with one service removed
+    RegistrySnapshot without(String serviceName) {
+        if (!entries.containsKey(serviceName)) {
+            return this;
+        }
+        Map<String, Entry> copy = new HashMap<>(entries);
+        copy.remove(serviceName);
+        return new RegistrySnapshot(version + 1, copy, stale, Collections.singleton(serviceName));
+    }
+
+    // Next snapshot, with the removed services dropped and the loaded ones added
+    RegistrySnapshot update(Collection<String> removed, SnapshotLoader.Loaded loaded) {
+        Map<String, Entry> next = new HashMap<>(entries);
+        next.keySet().removeAll(removed);
+        next.putAll(loaded.entries);
+        Set<String> touched = new HashSet<>(removed);
+        touched.addAll(loaded.entries.keySet());
+        return new RegistrySnapshot(version + 1, next, stale, touched);
+    }
+
+    @Override
+    public String toString() {
+        return getServices().toString();
+    }
+}
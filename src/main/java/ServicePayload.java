@@ -0,0 +1,375 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact binary znode payload for a service, and a reusable flyweight for reading one.
+//
+// Wrapping a payload only records where each field starts; the accessors then read straight from
+// the bytes, so decoding a registry full of payloads creates no strings unless a caller asks for
+// one. Plain-text "host:port" payloads, as written by register(String, String), are still
+// understood: they read as healthy, weight 1, no zone, no tags and no load.
+//
+// Layout (big-endian): byte MAGIC, byte FORMAT, short port, short weight, byte health,
+//   [FORMAT_LOAD only: short in-flight requests, int p99 latency in microseconds, byte CPU %],
+//   host, zone, byte tag count, tags; each string is an unsigned byte length then UTF-8 bytes.
+// Payloads without load are still written as FORMAT, so clients that predate FORMAT_LOAD can
+// read them. A binary payload in an unknown format, or one that is truncated, never throws: it
+// reads as unreadable, with an empty address, weight 0 and UNHEALTHY, so one bad znode can't stop
+// a client loading the rest of the registry. The registry leaves such services out of its address
+// map and listener events, and resolvers leave such instances out of their picks.
+public final class ServicePayload {
+    // Health as reported by the service itself
+    public enum Health {
+        HEALTHY,
+        DEGRADED,
+        UNHEALTHY,
+        DRAINING;
+
+        private static final Health[] VALUES = values();
+    }
+
+    // Not a valid first byte of UTF-8 text, so it can't be confused with a plain-text payload
+    static final byte MAGIC = (byte) 0xB5;
+    static final byte FORMAT = 1;
+    static final byte FORMAT_LOAD = 2;
+    private static final int HEADER = 2 + 2 + 2 + 1;
+    private static final int LOAD = 2 + 4 + 1;
+    private static final int MAX_STRING = 255;
+
+    private ByteBuffer buffer;
+    private int start;
+    private int end;
+    private boolean binary;
+    private boolean unreadable;
+    private boolean load;
+    private int hostOffset;
+    private int hostLength;
+    private int zoneOffset;
+    private int zoneLength;
+    private int tagCount;
+    private int tagsOffset;
+    private int port;
+
+    // Point this flyweight at a payload. Returns this, for chaining.
+    public ServicePayload wrap(byte[] data) {
+        return wrap(ByteBuffer.wrap(data));
+    }
+
+    // Point this flyweight at the remaining bytes of a buffer, without changing its position
+    public ServicePayload wrap(ByteBuffer data) {
+        buffer = data;
+        start = data.position();
+        end = data.limit();
+        binary = end - start >= HEADER + 3 && data.get(start) == MAGIC;
+        unreadable = false;
+        load = false;
+        if (binary) {
+            byte format = data.get(start + 1);
+            load = format == FORMAT_LOAD;
+            if ((format != FORMAT && !load) || !readLayout(load ? HEADER + LOAD : HEADER)) {
+                // Unknown format or truncated: keep the flyweight safe to read, but empty
+                unreadable = true;
+                load = false;
+                port = 0;
+                hostOffset = start;
+                hostLength = 0;
+                zoneOffset = start;
+                zoneLength = 0;
+                tagCount = 0;
+                tagsOffset = start;
+            }
+        } else {
+            // Plain text: host is everything before the last ':', port the digits after it
+            int colon = -1;
+            for (int i = end - 1; i >= start; i--) {
+                if (data.get(i) == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+            hostOffset = start;
+            hostLength = (colon < 0 ? end : colon) - start;
+            port = 0;
+            for (int i = colon + 1; colon >= 0 && i < end; i++) {
+                int digit = data.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    port = 0;
+                    break;
+                }
+                port = port * 10 + digit;
+            }
+            zoneOffset = end;
+            zoneLength = 0;
+            tagCount = 0;
+            tagsOffset = end;
+        }
+        return this;
+    }
+
+    // Find where each field of a binary payload starts, checking every length against the end of
+    // the payload. Returns false if they don't fit.
+    private boolean readLayout(int header) {
+        if (end - start < header + 1) {
+            return false;
+        }
+        port = buffer.getShort(start + 2) & 0xFFFF;
+        hostOffset = start + header + 1;
+        hostLength = buffer.get(start + header) & 0xFF;
+        zoneOffset = hostOffset + hostLength + 1;
+        if (zoneOffset > end) {
+            return false;
+        }
+        zoneLength = buffer.get(zoneOffset - 1) & 0xFF;
+        if (zoneOffset + zoneLength >= end) {
+            return false;
+        }
+        tagCount = buffer.get(zoneOffset + zoneLength) & 0xFF;
+        tagsOffset = zoneOffset + zoneLength + 1;
+        int offset = tagsOffset;
+        for (int i = 0; i < tagCount; i++) {
+            if (offset >= end) {
+                return false;
+            }
+            offset += 1 + (buffer.get(offset) & 0xFF);
+            if (offset > end) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // True if the wrapped payload is in the binary format rather than plain text
+    public boolean isBinary() {
+        return binary;
+    }
+
+    // True if the wrapped payload is binary but in an unknown format or truncated
+    public boolean isUnreadable() {
+        return unreadable;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public int weight() {
+        if (unreadable) {
+            return 0;
+        }
+        return binary ? buffer.getShort(start + 4) & 0xFFFF : 1;
+    }
+
+    public Health health() {
+        if (unreadable) {
+            return Health.UNHEALTHY;
+        }
+        if (!binary) {
+            return Health.HEALTHY;
+        }
+        int ordinal = buffer.get(start + 6) & 0xFF;
+        return ordinal < Health.VALUES.length ? Health.VALUES[ordinal] : Health.UNHEALTHY;
+    }
+
+    // True if the payload carries load figures, as written by a HealthReporter
+    public boolean hasLoad() {
+        return load;
+    }
+
+    // Requests the service had in flight when it last reported, or 0 if it hasn't
+    public int inFlight() {
+        return load ? buffer.getShort(start + HEADER) & 0xFFFF : 0;
+    }
+
+    // p99 request latency in microseconds when the service last reported, or 0 if it hasn't
+    public long p99Micros() {
+        return load ? buffer.getInt(start + HEADER + 2) & 0xFFFFFFFFL : 0;
+    }
+
+    // CPU use from 0 to 100 when the service last reported, or 0 if it hasn't
+    public int cpuPercent() {
+        return load ? buffer.get(start + HEADER + 6) & 0xFF : 0;
+    }
+
+    public boolean hostEquals(CharSequence host) {
+        return asciiEquals(hostOffset, hostLength, host);
+    }
+
+    public boolean zoneEquals(CharSequence zone) {
+        return asciiEquals(zoneOffset, zoneLength, zone);
+    }
+
+    public int tagCount() {
+        return tagCount;
+    }
+
+    public boolean hasTag(CharSequence tag) {
+        int offset = tagsOffset;
+        for (int i = 0; i < tagCount; i++) {
+            int length = buffer.get(offset) & 0xFF;
+            if (asciiEquals(offset + 1, length, tag)) {
+                return true;
+            }
+            offset += 1 + length;
+        }
+        return false;
+    }
+
+    // The following allocate, so they are for callers that really need a String
+
+    public String host() {
+        return string(hostOffset, hostLength);
+    }
+
+    // Zone, or an empty string if none was given
+    public String zone() {
+        return string(zoneOffset, zoneLength);
+    }
+
+    public List<String> tags() {
+        List<String> tags = new ArrayList<>(tagCount);
+        int offset = tagsOffset;
+        for (int i = 0; i < tagCount; i++) {
+            int length = buffer.get(offset) & 0xFF;
+            tags.add(string(offset + 1, length));
+            offset += 1 + length;
+        }
+        return tags;
+    }
+
+    // Address in the "host:port" form used by the registry's map of services, or an empty string
+    // if the payload is unreadable
+    public String address() {
+        if (!binary) {
+            return string(start, end - start);
+        }
+        if (unreadable) {
+            return "";
+        }
+        return host() + ":" + port;
+    }
+
+    // Address for raw znode data, whichever format it is in
+    static String address(byte[] data) {
+        if (data.length == 0 || data[0] != MAGIC) {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        return new ServicePayload().wrap(data).address();
+    }
+
+    // Compares bytes with characters, treating anything non-ASCII as a mismatch on either side
+    private boolean asciiEquals(int offset, int length, CharSequence value) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(offset + i);
+            if (b < 0 || b != value.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String string(int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Start building a binary payload
+    public static Builder builder(String host, int port) {
+        return new Builder(host, port);
+    }
+
+    public static final class Builder {
+        private final String host;
+        private final int port;
+        private int weight = 1;
+        private String zone = "";
+        private Health health = Health.HEALTHY;
+        private final List<String> tags = new ArrayList<>();
+        private boolean load;
+        private int inFlight;
+        private long p99Micros;
+        private int cpuPercent;
+
+        private Builder(String host, int port) {
+            if (port < 0 || port > 0xFFFF) {
+                throw new IllegalArgumentException("Port out of range: " + port);
+            }
+            this.host = host;
+            this.port = port;
+        }
+
+        public Builder weight(int weight) {
+            if (weight < 0 || weight > 0xFFFF) {
+                throw new IllegalArgumentException("Weight out of range: " + weight);
+            }
+            this.weight = weight;
+            return this;
+        }
+
+        public Builder zone(String zone) {
+            this.zone = zone;
+            return this;
+        }
+
+        public Builder health(Health health) {
+            this.health = health;
+            return this;
+        }
+
+        // Current load, clamped to what the format can hold. Setting it writes FORMAT_LOAD.
+        public Builder load(int inFlight, long p99Micros, int cpuPercent) {
+            this.load = true;
+            this.inFlight = Math.max(0, Math.min(inFlight, 0xFFFF));
+            this.p99Micros = Math.max(0, Math.min(p99Micros, 0xFFFFFFFFL));
+            this.cpuPercent = Math.max(0, Math.min(cpuPercent, 100));
+            return this;
+        }
+
+        public Builder tag(String tag) {
+            if (tags.size() == MAX_STRING) {
+                throw new IllegalArgumentException("Too many tags");
+            }
+            tags.add(tag);
+            return this;
+        }
+
+        public byte[] encode() {
+            byte[] hostBytes = bytes(host);
+            byte[] zoneBytes = bytes(zone);
+            List<byte[]> tagBytes = new ArrayList<>(tags.size());
+            int size = (load ? HEADER + LOAD : HEADER) + 1 + hostBytes.length + 1 + zoneBytes.length + 1;
+            for (String tag : tags) {
+                byte[] encoded = bytes(tag);
+                tagBytes.add(encoded);
+                size += 1 + encoded.length;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(size);
+            buffer.put(MAGIC).put(load ? FORMAT_LOAD : FORMAT).putShort((short) port).putShort((short) weight).put((byte) health.ordinal());
+            if (load) {
+                buffer.putShort((short) inFlight).putInt((int) p99Micros).put((byte) cpuPercent);
+            }
+            buffer.put((byte) hostBytes.length).put(hostBytes);
+            buffer.put((byte) zoneBytes.length).put(zoneBytes);
+            buffer.put((byte) tagBytes.size());
+            for (byte[] tag : tagBytes) {
+                buffer.put((byte) tag.length).put(tag);
+            }
+            return buffer.array();
+        }
+
+        private static byte[] bytes(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_STRING) {
+                throw new IllegalArgumentException("Longer than " + MAX_STRING + " bytes: " + value);
+            }
+            return bytes;
+        }
+    }
+}
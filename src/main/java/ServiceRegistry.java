@@ -2,29 +2,200 @@ import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
 
 public class ServiceRegistry implements Watcher {
-    private static final String SERVICES_ZNODE = "/services";  // Root path for services in ZooKeeper
+    // How the registry keeps itself up to date with ZooKeeper
+    public enum WatchMode {
+        ONE_SHOT,              // getChildren and getData watches, re-armed as they fire
+        PERSISTENT_RECURSIVE   // One persistent recursive watch on /services (ZooKeeper 3.6+)
+    }
+
+    // Where service znodes live under /services. Every client sharing a ZooKeeper ensemble should
+    // use the same layout, except while migrating from FLAT to SHARDED: a SHARDED registry also
+    // reads services registered directly under /services, so readers can be moved over first,
+    // then writers, and the flat znodes go away as the old writers' sessions end.
+    public enum Layout {
+        FLAT,     // /services/<name>
+        SHARDED   // /services/<bucket>/<name>, so a membership change only reloads one bucket
+    }
+
+    static final String SERVICES_ZNODE = "/services";  // Root path for services in ZooKeeper
+    // Root path for services with many instances. Kept apart from /services so that clients
+    // mirroring /services never see an instance set's container as a service.
+    static final String INSTANCES_ZNODE = "/instances";
+    static final int MAX_IN_FLIGHT = 1000;  // Max outstanding getData requests while loading a snapshot
+    private static final int MAX_MULTI_OPS = 500;  // Max operations in one multi() transaction
+    private static final long DEFAULT_REFRESH_DEBOUNCE_MILLIS = 10;  // How long a refresh waits for more events
+    static final String SHARD_PREFIX = "shard-";  // Bucket znodes are named shard-00 to shard-3f
+    static final int SHARD_COUNT = 64;  // Buckets in the sharded layout; must be the same for every client
+    private static final int CONNECT_ATTEMPTS = 5;  // Connection attempts before connectToZookeeper() gives up
+    private static final long MAX_CONNECT_BACKOFF_MILLIS = 10_000;  // Longest wait between connection attempts
     private final String zookeeperAddress;
     private final int sessionTimeout;
-    private ZooKeeper zooKeeper;
-    private final Map<String, String> registry = new ConcurrentHashMap<>();
-    private final CountDownLatch connectedSignal = new CountDownLatch(1);
+    private final WatchMode watchMode;
+    private final RegistryMetrics metrics;
+    private final Layout layout;
+    private volatile ZooKeeper zooKeeper;
+    // The current handle's watcher. Each handle gets its own, so events from one since replaced are ignored.
+    private volatile HandleWatcher handleWatcher;
+    private final Object connectLock = new Object();
+    private final AtomicReference<RegistrySnapshot> registry = new AtomicReference<>(RegistrySnapshot.EMPTY);
+    // Completed once the current handle connects, or when a new handle replaces it; replaced for every new session
+    private volatile CompletableFuture<Void> connectedSignal = new CompletableFuture<>();
+    private volatile boolean closed;
+    private final AtomicBoolean recovering = new AtomicBoolean();
+    private volatile boolean expiryPending;  // An expiry not yet dealt with by recoverSession()
+    // Everything this process has registered, so it can be put back if the session expires
+    private final Map<String, byte[]> localRegistrations = new ConcurrentHashMap<>();
+    private final Map<String, String> localInstances = new ConcurrentHashMap<>();  // Instance path to service name
+    private final Map<String, byte[]> localInstancePayloads = new ConcurrentHashMap<>();  // Instance path to payload
+    private final Map<String, String> movedInstances = new ConcurrentHashMap<>();  // Old instance path to its replacement
+    // Znodes whose children are services, by path, and those with changes waiting to be refreshed
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+    private final Set<String> dirtyShards = ConcurrentHashMap.newKeySet();
+    private volatile SnapshotFile snapshotFile;
+    private final AtomicBoolean snapshotWritePending = new AtomicBoolean();
+    private final RefreshScheduler refreshScheduler = new RefreshScheduler(this::updateRegistry, DEFAULT_REFRESH_DEBOUNCE_MILLIS);
+    // Re-reads a service's data when it changes, off the ZooKeeper event thread
+    private final Watcher serviceDataWatcher = event -> {
+        if (event.getType() == Event.EventType.NodeDataChanged) {
+            long eventTime = startTimer();
+            String servicePath = event.getPath();
+            refreshScheduler.execute(() -> updateRegistry(servicePath, eventTime));
+        }
+    };
+    private final Subscriptions subscriptions = new Subscriptions(this);
+    private final List<ListenerDispatcher> listeners = new CopyOnWriteArrayList<>();
+    // Helpers with their own watches on this registry's session, to be set up again after expiry
+    private final List<RecoveryHook> recoveryHooks = new CopyOnWriteArrayList<>();
+    private final Object publishLock = new Object();
+    private volatile boolean mirroringAll;  // Set once initialise() has loaded all of /services
+    private final Object eventLock = new Object();
+    // Persistent watch events received while the initial snapshot is loading, replayed once it is published
+    private List<WatchedEvent> pendingEvents;
+
+    // Passes on events from one handle for as long as it is the current one
+    private final class HandleWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (handleWatcher == this) {
+                ServiceRegistry.this.process(event);
+            }
+        }
+    }
+
+    // A znode whose children are services: /services itself, or one bucket of the sharded layout.
+    // Its members are the services last seen under it, so a refresh only reads the ones that joined.
+    private static final class Shard {
+        final String path;
+        final Set<String> members = ConcurrentHashMap.newKeySet();
+        final AtomicLong refreshGeneration = new AtomicLong();
+        final AtomicLong publishedGeneration = new AtomicLong();
+
+        Shard(String path) {
+            this.path = path;
+        }
+    }
 
     // Constructor
     public ServiceRegistry(String zookeeperAddress, int sessionTimeout) {
+        this(zookeeperAddress, sessionTimeout, WatchMode.ONE_SHOT);
+    }
+
+    public ServiceRegistry(String zookeeperAddress, int sessionTimeout, WatchMode watchMode) {
+        this(zookeeperAddress, sessionTimeout, watchMode, RegistryMetrics.NOOP);
+    }
+
+    public ServiceRegistry(String zookeeperAddress, int sessionTimeout, WatchMode watchMode, RegistryMetrics metrics) {
+        this(zookeeperAddress, sessionTimeout, watchMode, metrics, Layout.FLAT);
+    }
+
+    public ServiceRegistry(String zookeeperAddress, int sessionTimeout, WatchMode watchMode, RegistryMetrics metrics, Layout layout) {
         this.zookeeperAddress = zookeeperAddress;
         this.sessionTimeout = sessionTimeout;
+        this.watchMode = watchMode;
+        this.metrics = metrics;
+        this.layout = layout;
+        shard(SERVICES_ZNODE);
     }
 
-    // Connect to Zookeeper
+    // Connect to Zookeeper. Each attempt waits up to the session timeout; a failed attempt's handle
+    // is closed and, after a randomised exponential backoff, a fresh one is tried. Throws
+    // IOException if every attempt fails.
     public void connectToZookeeper() throws IOException, InterruptedException {
-        zooKeeper = new ZooKeeper(zookeeperAddress, sessionTimeout, this);
-        connectedSignal.await(); // Wait until connected
+        if (!connect(CONNECT_ATTEMPTS)) {
+            throw new IOException("Couldn't connect to Zookeeper at " + zookeeperAddress + " after " + CONNECT_ATTEMPTS + " attempts");
+        }
+    }
+
+    // Connect to Zookeeper, waiting at most the given time. Returns false if not yet connected, in
+    // which case the client keeps trying in the background. Called again while a handle is still
+    // connecting or connected, waits on that handle rather than opening a second session.
+    public boolean connectToZookeeper(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        CompletableFuture<Void> signal;
+        synchronized (connectLock) {
+            ZooKeeper current = zooKeeper;
+            if (current != null && current.getState().isAlive()) {
+                signal = connectedSignal;
+            } else {
+                signal = new CompletableFuture<>();
+                CompletableFuture<Void> previous = connectedSignal;
+                connectedSignal = signal;
+                previous.complete(null);  // Anything waiting on the old handle moves on to this one
+                HandleWatcher watcher = new HandleWatcher();
+                handleWatcher = watcher;
+                zooKeeper = new ZooKeeper(zookeeperAddress, sessionTimeout, watcher);
+            }
+        }
+        try {
+            signal.get(timeout, unit);
+            return true;
+        } catch (TimeoutException | ExecutionException e) {
+            return false;  // Not connected yet, or closed
+        }
+    }
+
+    // Open a new session, making up to the given number of attempts. Returns false if none
+    // succeeded or the registry was closed.
+    private boolean connect(int attempts) throws IOException, InterruptedException {
+        for (int attempt = 0; attempt < attempts && !closed; attempt++) {
+            if (attempt > 0) {
+                long backoff = Math.min(MAX_CONNECT_BACKOFF_MILLIS, 100L << Math.min(attempt - 1, 16));
+                Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            }
+            if (connectToZookeeper(sessionTimeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            System.out.println("Couldn't connect to Zookeeper at " + zookeeperAddress + " (attempt " + (attempt + 1) + ")");
+            zooKeeper.close();
+        }
+        return false;
     }
 
     // Process events from Zookeeper
@@ -32,13 +203,82 @@ public class ServiceRegistry implements Watcher {
     public void process(WatchedEvent event) {
         if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
             System.out.println("Successfully connected to Zookeeper");
-            connectedSignal.countDown(); // Signal that connection is established
+            connectedSignal.complete(null); // Signal that connection is established
         } else if (event.getState() == Watcher.Event.KeeperState.Disconnected) {
             System.out.println("Disconnected from Zookeeper");
+        } else if (event.getState() == Watcher.Event.KeeperState.Expired) {
+            System.out.println("Zookeeper session expired");
+            expiryPending = true;
+            scheduleRecovery();
+        }
+
+        if (watchMode == WatchMode.PERSISTENT_RECURSIVE) {
+            processServiceEvent(event);
+        } else if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged && shards.containsKey(event.getPath())) {
+            dirtyShards.add(event.getPath());
+            refreshScheduler.request(startTimer());
+        }
+    }
+
+    // Handle an event from the persistent recursive watch on /services
+    private void processServiceEvent(WatchedEvent event) {
+        long eventTime = startTimer();
+        String path = event.getPath();
+        if (path == null || !isServicePath(path)) {
+            return;
+        }
+        synchronized (eventLock) {
+            if (pendingEvents != null) {
+                pendingEvents.add(event);
+            } else {
+                applyServiceEvent(path, event.getType(), eventTime);
+            }
         }
+    }
 
-        if (event.getType() == Watcher.Event.EventType.NodeChildrenChanged && SERVICES_ZNODE.equals(event.getPath())) {
-            updateRegistry();
+    // True if the path is a service's znode, rather than /services, a bucket or anything below a service
+    private boolean isServicePath(String path) {
+        if (!path.startsWith(SERVICES_ZNODE + "/")) {
+            return false;
+        }
+        String parent = parentOf(path);
+        if (parent.equals(SERVICES_ZNODE)) {
+            return !isBucket(nameOf(path));
+        }
+        return layout == Layout.SHARDED && parentOf(parent).equals(SERVICES_ZNODE) && isBucket(nameOf(parent));
+    }
+
+    // Apply a single service event to the registry. ZooKeeper delivers read responses and watch
+    // events for a session in order, so applying them as they arrive never loses an update.
+    private void applyServiceEvent(String servicePath, Event.EventType type, long eventTime) {
+        String serviceName = nameOf(servicePath);
+        Shard shard = shard(parentOf(servicePath));
+        switch (type) {
+            case NodeCreated:
+            case NodeDataChanged:
+                metrics.refreshStarted(false);
+                long start = startTimer();
+                zooKeeper.getData(servicePath, false, (rc, path, ctx, data, stat) -> {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    stopTimer(RegistryMetrics.Operation.GET_DATA, start, code);
+                    if (code == KeeperException.Code.OK) {
+                        shard.members.add(serviceName);
+                        publish(current -> current.with(serviceName, data, stat.getMzxid(), stat.getVersion()), eventTime);
+                    } else if (code != KeeperException.Code.NONODE) {
+                        metrics.updateFailed();
+                        KeeperException.create(code, path).printStackTrace();
+                    }
+                }, null);
+                break;
+            case NodeDeleted:
+                metrics.refreshStarted(false);
+                shard.members.remove(serviceName);
+                if (!heldElsewhere(shard, serviceName)) {
+                    publish(current -> current.without(serviceName), eventTime);
+                }
+                break;
+            default:
+                break;
         }
     }
 
@@ -49,8 +289,20 @@ public class ServiceRegistry implements Watcher {
         }
     }
 
+    // How long a membership refresh waits after the first change event, so that a burst of
+    // changes is picked up by one refresh. Defaults to 10ms.
+    public void setRefreshDebounceMillis(long debounceMillis) {
+        refreshScheduler.setDebounceMillis(debounceMillis);
+    }
+
     // Close the Zookeeper connection
     public void close() throws InterruptedException {
+        closed = true;
+        connectedSignal.completeExceptionally(new IllegalStateException("Registry closed"));
+        refreshScheduler.close();
+        if (snapshotFile != null) {
+            writeSnapshotFile();
+        }
         if (zooKeeper != null) {
             zooKeeper.close();
             System.out.println("Disconnected from Zookeeper");
@@ -60,78 +312,975 @@ public class ServiceRegistry implements Watcher {
     // Initialize the service registry
     public void initialise() throws KeeperException, InterruptedException {
         // Ensure /services exists, if not, create it
-        if (zooKeeper.exists(SERVICES_ZNODE, false) == null) {
-            zooKeeper.create(SERVICES_ZNODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        if (timed(RegistryMetrics.Operation.EXISTS, () -> zooKeeper.exists(SERVICES_ZNODE, false)) == null) {
+            timed(RegistryMetrics.Operation.CREATE, () -> zooKeeper.create(SERVICES_ZNODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
             System.out.println("Created root services node: " + SERVICES_ZNODE);
         }
+        if (layout == Layout.SHARDED) {
+            createShards();
+        }
+        mirroringAll = true;
+        metrics.refreshStarted(true);
 
-        // Watch and get all children (services) under the /services node
-        List<String> serviceNames = zooKeeper.getChildren(SERVICES_ZNODE, this);
+        if (watchMode == WatchMode.PERSISTENT_RECURSIVE) {
+            initialisePersistent();
+            return;
+        }
 
-        // For each service, retrieve its address and store it in the registry
-        for (String serviceName : serviceNames) {
-            String servicePath = SERVICES_ZNODE + "/" + serviceName;
-            byte[] data = zooKeeper.getData(servicePath, event -> {
-                if (event.getType() == Event.EventType.NodeDataChanged) {
-                    updateRegistry(serviceName);
+        // Watch all children (services) under the /services node and load each one's address,
+        // leaving a data watch on every service. If the registry was started from the snapshot
+        // file, only services that have changed since are read again.
+        SnapshotLoader.Loaded services = await(loadAll(this, serviceDataWatcher));
+        publish(current -> current.replace(services), 0);
+    }
+
+    // Create any bucket znodes that don't exist yet, so services can be registered straight into them
+    private void createShards() throws KeeperException, InterruptedException {
+        while (true) {
+            Set<String> existing = new HashSet<>(timed(RegistryMetrics.Operation.GET_CHILDREN, () -> zooKeeper.getChildren(SERVICES_ZNODE, false)));
+            List<Op> ops = new ArrayList<>();
+            for (int i = 0; i < SHARD_COUNT; i++) {
+                String bucket = bucketName(i);
+                if (!existing.contains(bucket)) {
+                    ops.add(Op.create(SERVICES_ZNODE + "/" + bucket, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
                 }
-            }, null);
-            String serviceAddress = new String(data);
-            registry.put(serviceName, serviceAddress);
+            }
+            if (ops.isEmpty()) {
+                return;
+            }
+            try {
+                timed(RegistryMetrics.Operation.MULTI, () -> zooKeeper.multi(ops));
+                System.out.println("Created " + ops.size() + " service buckets under " + SERVICES_ZNODE);
+                return;
+            } catch (KeeperException.NodeExistsException e) {
+                // Another client created some of them at the same time, so look again
+            }
+        }
+    }
+
+    // Load every service, leaving childWatcher on each znode that holds services and dataWatcher
+    // on every service (either may be null). Services in the cached snapshot are only read again if
+    // they have changed. In the sharded layout the buckets are loaded side by side, sharing the
+    // window of outstanding requests.
+    private CompletableFuture<SnapshotLoader.Loaded> loadAll(Watcher childWatcher, Watcher dataWatcher) {
+        RegistrySnapshot cached = registry.get();
+        if (layout == Layout.FLAT) {
+            return SnapshotLoader.reconcile(zooKeeper, SERVICES_ZNODE, childWatcher, dataWatcher, cached, MAX_IN_FLIGHT, metrics)
+                    .thenApply(loaded -> loadedShard(shard(SERVICES_ZNODE), loaded));
+        }
+
+        CompletableFuture<SnapshotLoader.Loaded> result = new CompletableFuture<>();
+        long start = startTimer();
+        zooKeeper.getChildren(SERVICES_ZNODE, childWatcher, (rc, path, ctx, children) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            stopTimer(RegistryMetrics.Operation.GET_CHILDREN, start, code);
+            if (code != KeeperException.Code.OK) {
+                result.completeExceptionally(KeeperException.create(code, path));
+                return;
+            }
+            List<String> buckets = new ArrayList<>();
+            List<String> flat = new ArrayList<>();
+            for (String child : children) {
+                (isBucket(child) ? buckets : flat).add(child);
+            }
+            int window = Math.max(1, MAX_IN_FLIGHT / (buckets.size() + 1));
+            List<CompletableFuture<SnapshotLoader.Loaded>> loads = new ArrayList<>();
+            // Services left over from the flat layout go first, so a bucket's copy wins if both exist
+            loads.add(SnapshotLoader.load(zooKeeper, SERVICES_ZNODE, flat, dataWatcher, window, metrics)
+                    .thenApply(loaded -> loadedShard(shard(SERVICES_ZNODE), loaded)));
+            for (String bucket : buckets) {
+                Shard shard = shard(SERVICES_ZNODE + "/" + bucket);
+                loads.add(SnapshotLoader.reconcile(zooKeeper, shard.path, childWatcher, dataWatcher, cached, window, metrics)
+                        .thenApply(loaded -> loadedShard(shard, loaded)));
+            }
+            CompletableFuture.allOf(loads.toArray(new CompletableFuture[0])).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error.getCause() != null ? error.getCause() : error);
+                    return;
+                }
+                SnapshotLoader.Loaded all = new SnapshotLoader.Loaded(new HashMap<>());
+                for (CompletableFuture<SnapshotLoader.Loaded> load : loads) {
+                    all.entries.putAll(load.join().entries);
+                }
+                result.complete(all);
+            });
+        }, null);
+        return result;
+    }
+
+    // Record the services a full load found under a shard
+    private SnapshotLoader.Loaded loadedShard(Shard shard, SnapshotLoader.Loaded loaded) {
+        shard.members.retainAll(loaded.entries.keySet());
+        shard.members.addAll(loaded.entries.keySet());
+        return loaded;
+    }
+
+    // Initialise the registry on the refresh thread once connected, without blocking the caller.
+    // Until then, the registry serves whatever was loaded from the snapshot file. Must follow
+    // connectToZookeeper(timeout, unit), which may return before the connection is made.
+    public CompletableFuture<Void> initialiseInBackground() {
+        if (zooKeeper == null) {
+            throw new IllegalStateException("connectToZookeeper() must be called before initialiseInBackground()");
+        }
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        whenConnected(result, () -> refreshScheduler.execute(() -> {
+            try {
+                initialise();
+                System.out.println("Registry reconciled with Zookeeper: " + registry.get().size() + " services");
+                result.complete(null);
+            } catch (KeeperException | InterruptedException | RuntimeException e) {
+                metrics.updateFailed();
+                e.printStackTrace();
+                result.completeExceptionally(e);
+            }
+        }));
+        return result;
+    }
+
+    // Run the task once connected, without holding a thread while waiting. If a new handle
+    // replaces the current one first, waits for that one instead. Fails the result if the
+    // registry is closed.
+    private void whenConnected(CompletableFuture<?> result, Runnable task) {
+        CompletableFuture<Void> signal = connectedSignal;
+        signal.whenComplete((ignored, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (signal != connectedSignal) {
+                whenConnected(result, task);
+            } else {
+                task.run();
+            }
+        });
+    }
+
+    // Add a persistent recursive watch on /services and load the initial snapshot. Events that
+    // arrive during the load are held back and applied on top of it.
+    private void initialisePersistent() throws KeeperException, InterruptedException {
+        synchronized (eventLock) {
+            pendingEvents = new ArrayList<>();
+        }
+        try {
+            zooKeeper.addWatch(SERVICES_ZNODE, AddWatchMode.PERSISTENT_RECURSIVE);
+            SnapshotLoader.Loaded services = await(loadAll(null, null));
+            synchronized (eventLock) {
+                publish(current -> current.replace(services), 0);
+                for (WatchedEvent event : pendingEvents) {
+                    applyServiceEvent(event.getPath(), event.getType(), startTimer());
+                }
+            }
+        } finally {
+            synchronized (eventLock) {
+                pendingEvents = null;
+            }
+        }
+    }
+
+    // Replace an expired session: connect again with backoff, put back everything this process
+    // registered in one batch, then restore the watches with a single reload, which only re-reads
+    // services that changed while the session was gone. Runs on the refresh thread, and goes round
+    // again if the new session expires too before it is done.
+    private void recoverSession() {
+        try {
+            do {
+                expiryPending = false;
+                recoverOnce();
+            } while (!closed && (expiryPending || !zooKeeper.getState().isAlive()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            recovering.set(false);
+        }
+        if (expiryPending) {
+            scheduleRecovery();  // Expired again after the last check
+        }
+    }
+
+    private void scheduleRecovery() {
+        if (!closed && recovering.compareAndSet(false, true)) {
+            refreshScheduler.execute(this::recoverSession);
+        }
+    }
+
+    private void recoverOnce() throws InterruptedException {
+        long start = System.nanoTime();
+        ZooKeeper expired = zooKeeper;
+        if (expired.getState().isAlive()) {
+            return;  // Already replaced by an earlier pass; never close a live session
+        }
+        try {
+            if (!connect(Integer.MAX_VALUE)) {
+                return;  // Closed while reconnecting
+            }
+            expired.close();
+            replayRegistrations();
+            restoreWatches();
+            long nanos = System.nanoTime() - start;
+            metrics.sessionRecovered(nanos);
+            System.out.println("Recovered Zookeeper session in " + nanos / 1_000_000 + " ms");
+        } catch (KeeperException | IOException | RuntimeException e) {
+            metrics.updateFailed();
+            e.printStackTrace();
+        }
+    }
+
+    // Register everything this process had registered again, in as few transactions as possible.
+    // Instances get new sequence numbers, so their paths change.
+    private void replayRegistrations() throws KeeperException, InterruptedException {
+        if (!localRegistrations.isEmpty()) {
+            registerPayloads(new HashMap<>(localRegistrations));
+        }
+        for (String instancePath : new ArrayList<>(localInstances.keySet())) {
+            String serviceName = localInstances.remove(instancePath);
+            byte[] payload = localInstancePayloads.remove(instancePath);
+            movedInstances.put(instancePath, registerInstance(serviceName, payload));
+        }
+    }
+
+    // Set up the watches the expired session had, reloading whatever they cover
+    private void restoreWatches() throws KeeperException, InterruptedException {
+        if (mirroringAll) {
+            metrics.refreshStarted(true);
+            if (watchMode == WatchMode.PERSISTENT_RECURSIVE) {
+                initialisePersistent();
+            } else {
+                SnapshotLoader.Loaded services = await(loadAll(this, serviceDataWatcher));
+                publish(current -> current.replace(services), 0);
+            }
+        }
+        subscriptions.restore();
+        for (RecoveryHook hook : recoveryHooks) {
+            hook.sessionRecovered();
         }
     }
 
-    // Update the registry for a specific service when its data changes
-    private void updateRegistry(String serviceName) {
+    // Called on the refresh thread once an expired session has been replaced and this process's
+    // registrations are back, to set up watches again on the new session
+    interface RecoveryHook {
+        void sessionRecovered() throws KeeperException, InterruptedException;
+    }
+
+    void addRecoveryHook(RecoveryHook hook) {
+        recoveryHooks.add(hook);
+    }
+
+    // Update the registry for a specific service when its data changes. The read sets the data
+    // watch again, since a one-shot watch is used up by the change that fired it.
+    private void updateRegistry(String servicePath, long eventTime) {
         try {
-            String servicePath = SERVICES_ZNODE + "/" + serviceName;
-            byte[] data = zooKeeper.getData(servicePath, false, null);
-            String updatedAddress = new String(data);
-            registry.put(serviceName, updatedAddress);  // Update the registry with new address
+            awaitListeners();
+            metrics.refreshStarted(false);
+            String serviceName = nameOf(servicePath);
+            Stat stat = new Stat();
+            byte[] data = timed(RegistryMetrics.Operation.GET_DATA, () -> zooKeeper.getData(servicePath, serviceDataWatcher, stat));
+            publish(current -> current.with(serviceName, data, stat.getMzxid(), stat.getVersion()), eventTime);  // Update the registry with new address
+        } catch (KeeperException.NoNodeException e) {
+            // Deleted since the change; the membership refresh removes it
         } catch (KeeperException | InterruptedException e) {
+            metrics.updateFailed();
             e.printStackTrace();
         }
     }
 
-    // Update the registry for all services by fetching the latest data from ZooKeeper
-    private void updateRegistry() {
-        registry.clear();
+    // Refresh the shards that have had membership changes since the last refresh
+    private CompletableFuture<MembershipChange> updateRegistry(long eventTime) {
         try {
-            // Get the list of children under /services
-            List<String> children = zooKeeper.getChildren("/services", true);
+            awaitListeners();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(e);  // Closing
+        }
+        List<Shard> dirty = new ArrayList<>();
+        for (Iterator<String> it = dirtyShards.iterator(); it.hasNext(); ) {
+            dirty.add(shard(it.next()));
+            it.remove();
+        }
+        return refreshShards(dirty, eventTime);
+    }
+
+    // Refresh the given shards side by side, returning the services that joined and left
+    private CompletableFuture<MembershipChange> refreshShards(List<Shard> toRefresh, long eventTime) {
+        metrics.refreshStarted(false);
+        List<CompletableFuture<MembershipChange>> refreshes = new ArrayList<>(toRefresh.size());
+        for (Shard shard : toRefresh) {
+            refreshes.add(refreshShard(shard, eventTime));
+        }
+        CompletableFuture<MembershipChange> result = combine(refreshes);
+        result.whenComplete((change, error) -> {
+            if (error != null) {
+                metrics.updateFailed();
+                error.printStackTrace();
+            } else if (!change.isEmpty()) {
+                System.out.println("Registry membership changed: " + change);
+                System.out.println("Current Registry: " + registry.get());
+            }
+        });
+        return result;
+    }
+
+    // Update the membership of one shard by diffing its current children against the services
+    // last seen under it. Only services that joined have their data read; services that left are
+    // dropped and everything else is kept as is. Watch events schedule this on the refresh thread;
+    // it is fully asynchronous, so it is also safe to call from the ZooKeeper event thread. A
+    // refresh of a shard that finishes after a newer one is discarded.
+    private CompletableFuture<MembershipChange> refreshShard(Shard shard, long eventTime) {
+        long generation = shard.refreshGeneration.incrementAndGet();
+        CompletableFuture<MembershipChange> result = new CompletableFuture<>();
+        long start = startTimer();
+        // Watched through the handle's own watcher, so its state events arrive once and only while it is current
+        zooKeeper.getChildren(shard.path, true, (rc, path, ctx, children) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            stopTimer(RegistryMetrics.Operation.GET_CHILDREN, start, code);
+            if (code != KeeperException.Code.OK) {
+                result.completeExceptionally(KeeperException.create(code, path));
+                return;
+            }
+            List<String> services = new ArrayList<>(children.size());
+            List<CompletableFuture<MembershipChange>> newBuckets = new ArrayList<>();
             for (String child : children) {
-                byte[] data = zooKeeper.getData("/services/" + child, false, null);
-                registry.put(child, new String(data));
+                if (shard.path.equals(SERVICES_ZNODE) && isBucket(child)) {
+                    if (!shards.containsKey(SERVICES_ZNODE + "/" + child)) {
+                        newBuckets.add(refreshShard(shard(SERVICES_ZNODE + "/" + child), eventTime));
+                    }
+                } else {
+                    services.add(child);
+                }
             }
-            System.out.println("Current Registry: " + registry);
-        } catch (KeeperException | InterruptedException e) {
+            Set<String> removed = new HashSet<>(shard.members);
+            removed.removeAll(services);
+            List<String> added = new ArrayList<>();
+            for (String service : services) {
+                if (!shard.members.contains(service)) {
+                    added.add(service);
+                }
+            }
+            CompletableFuture<MembershipChange> own = SnapshotLoader.load(zooKeeper, shard.path, added, serviceDataWatcher,
+                    MAX_IN_FLIGHT, metrics).thenApply(loaded -> {
+                if (shard.publishedGeneration.getAndAccumulate(generation, Math::max) > generation) {
+                    metrics.updateMissed();
+                    return MembershipChange.NONE;
+                }
+                return publishShard(shard, removed, loaded, eventTime);
+            });
+            newBuckets.add(own);
+            combine(newBuckets).whenComplete((change, error) -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(change);
+                }
+            });
+        }, null);
+        return result;
+    }
+
+    // Merge the changes of several refreshes once they have all finished
+    private static CompletableFuture<MembershipChange> combine(List<CompletableFuture<MembershipChange>> changes) {
+        if (changes.size() == 1) {
+            return changes.get(0);
+        }
+        return CompletableFuture.allOf(changes.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            List<MembershipChange> done = new ArrayList<>(changes.size());
+            for (CompletableFuture<MembershipChange> change : changes) {
+                done.add(change.join());
+            }
+            return MembershipChange.combine(done);
+        });
+    }
+
+    // Swap in a snapshot with one shard's departed services removed and new ones added, returning
+    // what changed
+    private MembershipChange publishShard(Shard shard, Set<String> removed, SnapshotLoader.Loaded loaded, long eventTime) {
+        shard.members.removeAll(removed);
+        shard.members.addAll(loaded.entries.keySet());
+        removed.removeIf(serviceName -> heldElsewhere(shard, serviceName));
+        synchronized (publishLock) {
+            // Only the services this refresh touched can have joined or left, so check just those
+            // rather than diffing whole snapshots. A service is listed while its address is readable.
+            RegistrySnapshot current = registry.get();
+            Set<String> joined = new HashSet<>();
+            Set<String> left = new HashSet<>();
+            for (String serviceName : removed) {
+                if (current.get(serviceName) != null) {
+                    left.add(serviceName);
+                }
+            }
+            for (Map.Entry<String, RegistrySnapshot.Entry> entry : loaded.entries.entrySet()) {
+                boolean listed = current.get(entry.getKey()) != null;
+                if (entry.getValue().address() != null) {
+                    if (!listed) {
+                        joined.add(entry.getKey());
+                    }
+                } else if (listed) {
+                    left.add(entry.getKey());
+                }
+            }
+            publish(snapshot -> snapshot.update(removed, loaded), eventTime);
+            return MembershipChange.of(joined, left);
+        }
+    }
+
+    // While migrating to the sharded layout a service can be registered both directly under
+    // /services and in its bucket. It stays in the registry until it has left both.
+    private boolean heldElsewhere(Shard shard, String serviceName) {
+        if (layout != Layout.SHARDED) {
+            return false;
+        }
+        String otherPath = shard.path.equals(SERVICES_ZNODE) ? SERVICES_ZNODE + "/" + bucketOf(serviceName) : SERVICES_ZNODE;
+        Shard other = shards.get(otherPath);
+        return other != null && other.members.contains(serviceName);
+    }
+
+    private Shard shard(String path) {
+        return shards.computeIfAbsent(path, Shard::new);
+    }
+
+    // Path of a service's znode: /services/<name>, or /services/<bucket>/<name> when sharded
+    String servicePath(String serviceName) {
+        if (layout == Layout.SHARDED) {
+            return SERVICES_ZNODE + "/" + bucketOf(serviceName) + "/" + serviceName;
+        }
+        return SERVICES_ZNODE + "/" + serviceName;
+    }
+
+    // Bucket a service belongs to in the sharded layout
+    static String bucketOf(String serviceName) {
+        return bucketName((int) Math.floorMod(bucketHash(serviceName), (long) SHARD_COUNT));
+    }
+
+    // Hash that places services in buckets. It is part of the layout in ZooKeeper, which every
+    // client must agree on, so it must never change; it is kept apart from the resolvers' hash
+    // so that one can. 64-bit FNV-1a over the characters followed by a murmur finaliser.
+    static long bucketHash(String serviceName) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < serviceName.length(); i++) {
+            hash ^= serviceName.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static String bucketName(int bucket) {
+        return SHARD_PREFIX + Character.forDigit(bucket >> 4, 16) + Character.forDigit(bucket & 0xF, 16);
+    }
+
+    // True if the child of /services is a bucket: exactly shard- and two lowercase hex digits
+    // naming one of the SHARD_COUNT buckets. Anything else, such as shard-foo, is a service.
+    private boolean isBucket(String child) {
+        if (layout != Layout.SHARDED || child.length() != SHARD_PREFIX.length() + 2 || !child.startsWith(SHARD_PREFIX)) {
+            return false;
+        }
+        int high = lowerHexDigit(child.charAt(SHARD_PREFIX.length()));
+        int low = lowerHexDigit(child.charAt(SHARD_PREFIX.length() + 1));
+        return high >= 0 && low >= 0 && (high << 4 | low) < SHARD_COUNT;
+    }
+
+    private static int lowerHexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        return c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+    }
+
+    // A service's znode has been created or updated by this process
+    private void registered(String serviceName) {
+        shard(parentOf(servicePath(serviceName))).members.add(serviceName);
+    }
+
+    private static String parentOf(String path) {
+        return path.substring(0, path.lastIndexOf('/'));
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    // Swap in the next snapshot, built from the current one. Snapshots are published one at a time,
+    // so listeners are told about changes in the order they were made; readers never wait.
+    RegistrySnapshot publish(UnaryOperator<RegistrySnapshot> change, long eventTime) {
+        synchronized (publishLock) {
+            RegistrySnapshot previous = registry.get();
+            RegistrySnapshot next = change.apply(previous);
+            registry.set(next);
+            published(next, eventTime);
+            if (next != previous) {
+                notifyListeners(previous, next);
+            }
+            return next;
+        }
+    }
+
+    // Push an event to every listener for each service whose address differs between the snapshots
+    private void notifyListeners(RegistrySnapshot previous, RegistrySnapshot next) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        Collection<String> changed = next.getChanged();
+        if (changed == null) {
+            Set<String> all = new HashSet<>(previous.getServices().keySet());
+            all.addAll(next.getServices().keySet());
+            changed = all;
+        }
+        for (String serviceName : changed) {
+            RegistrySnapshot.Entry before = previous.getEntry(serviceName);
+            RegistrySnapshot.Entry after = next.getEntry(serviceName);
+            String oldAddress = before == null ? null : before.address();
+            String newAddress = after == null ? null : after.address();
+            if (Objects.equals(oldAddress, newAddress)) {
+                continue;
+            }
+            RegistryEvent event = RegistryEvent.of(serviceName, oldAddress, newAddress, newAddress != null ? after.version : before.version);
+            for (ListenerDispatcher listener : listeners) {
+                listener.dispatch(event);
+            }
+        }
+    }
+
+    // Called on the refresh thread before it reads further changes. Events are handed to listeners
+    // without blocking, as they are often published on the ZooKeeper event thread; instead, while
+    // an EVERY_EVENT listener is full, no more changes are read. Changes published meanwhile by
+    // other threads, such as watch events applied directly in PERSISTENT_RECURSIVE mode, are merged
+    // per service by the listener's dispatcher instead.
+    private void awaitListeners() throws InterruptedException {
+        for (ListenerDispatcher listener : listeners) {
+            listener.awaitCapacity();
+        }
+    }
+
+    // Push every change to the registry to a listener, on the given executor. Events for a service
+    // arrive in order; see RegistryListener.Delivery for what happens when the listener falls behind.
+    public void addListener(RegistryListener listener, Executor executor, RegistryListener.Delivery delivery) {
+        addListener(listener, executor, delivery, ListenerDispatcher.DEFAULT_CAPACITY);
+    }
+
+    // As above, holding at most capacity undelivered events for an EVERY_EVENT listener
+    void addListener(RegistryListener listener, Executor executor, RegistryListener.Delivery delivery, int capacity) {
+        listeners.add(new ListenerDispatcher(listener, executor, delivery, capacity));
+    }
+
+    public void removeListener(RegistryListener listener) {
+        listeners.removeIf(dispatcher -> dispatcher.getListener() == listener);
+    }
+
+    // Record a newly published snapshot. eventTime is when the watch event that caused it was
+    // received, or 0 if it wasn't caused by one.
+    private void published(RegistrySnapshot snapshot, long eventTime) {
+        if (metrics.isEnabled()) {
+            metrics.registrySize(snapshot.size());
+            if (eventTime != 0) {
+                metrics.snapshotPublished(System.nanoTime() - eventTime);
+            }
+        }
+        if (snapshotFile != null && snapshotWritePending.compareAndSet(false, true)) {
+            refreshScheduler.execute(this::writeSnapshotFile);
+        }
+    }
+
+    // Keep a copy of the registry in the given file, and start from the copy already there if there
+    // is one. The copy is served, marked stale, until initialise() has reconciled it with ZooKeeper,
+    // which only re-reads services that changed in the meantime. Call before connecting.
+    // Returns true if a copy was loaded.
+    public boolean setSnapshotFile(Path path) {
+        snapshotFile = new SnapshotFile(path);
+        RegistrySnapshot cached = snapshotFile.read();
+        synchronized (publishLock) {
+            if (cached == null || registry.get() != RegistrySnapshot.EMPTY) {
+                return false;
+            }
+            registry.set(cached);
+        }
+        System.out.println("Loaded " + cached.size() + " services from registry snapshot file: " + path);
+        return true;
+    }
+
+    // Write the current registry to the snapshot file. Runs on the refresh thread, so bursts of
+    // changes are written once.
+    private synchronized void writeSnapshotFile() {
+        snapshotWritePending.set(false);
+        try {
+            snapshotFile.write(registry.get());
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // Get the current service registry
+    // Refresh the registry membership from ZooKeeper, returning the services that joined and left
+    public CompletableFuture<MembershipChange> refresh() {
+        return refreshShards(new ArrayList<>(shards.values()), 0);
+    }
+
+    // A blocking ZooKeeper call
+    private interface ZooKeeperCall<T> {
+        T call() throws KeeperException, InterruptedException;
+    }
+
+    // Make a blocking ZooKeeper call, recording its latency and result
+    private <T> T timed(RegistryMetrics.Operation operation, ZooKeeperCall<T> call) throws KeeperException, InterruptedException {
+        long start = startTimer();
+        try {
+            T result = call.call();
+            stopTimer(operation, start, KeeperException.Code.OK);
+            return result;
+        } catch (KeeperException e) {
+            stopTimer(operation, start, e.code());
+            throw e;
+        }
+    }
+
+    // Current time for a latency measurement, or 0 when metrics are off
+    private long startTimer() {
+        return metrics.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    private void stopTimer(RegistryMetrics.Operation operation, long start, KeeperException.Code result) {
+        if (metrics.isEnabled()) {
+            metrics.zooKeeperCall(operation, System.nanoTime() - start, result);
+        }
+    }
+
+    // Metrics the registry reports to, shared with helpers built on top of it
+    RegistryMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Wait for an async ZooKeeper operation, rethrowing its KeeperException if it failed
+    private static <T> T await(CompletableFuture<T> future) throws KeeperException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException) {
+                throw (KeeperException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Watch only the given services instead of all of /services. Use this instead of initialise()
+    // when a process only needs a few services: each one costs a single watch, and only subscribed
+    // services are held in the registry. Returns once their current addresses have been read and
+    // passed to the listener.
+    public Subscription subscribe(Set<String> serviceNames, Subscription.Listener listener) throws KeeperException, InterruptedException {
+        Subscription subscription = new Subscription(subscriptions, listener);
+        subscription.add(serviceNames);
+        return subscription;
+    }
+
+    // True once initialise() has been called, so the registry holds every service
+    boolean isMirroringAll() {
+        return mirroringAll;
+    }
+
+    // Get the current service registry. The map is unmodifiable and never changes once returned.
     public Map<String, String> getServices() {
-        return new ConcurrentHashMap<>(registry);
+        return registry.get().getServices();
     }
 
-    // Register or update a service in the registry
+    // Get the current versioned snapshot of the service registry
+    public RegistrySnapshot getSnapshot() {
+        return registry.get();
+    }
+
+    // Register or update a service in the registry. Most registrations are new, so this tries to
+    // create the znode first and only updates it if it already exists: one round trip in the
+    // common case instead of two.
     public void register(String serviceName, String serviceAddress) throws KeeperException, InterruptedException {
-        String path = SERVICES_ZNODE + "/" + serviceName;
+        register(serviceName, serviceAddress.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Register or update a service with a payload built by ServicePayload.builder(), so that it can
+    // carry a weight, zone, health state and tags as well as its address
+    public void register(String serviceName, byte[] payload) throws KeeperException, InterruptedException {
+        String path = servicePath(serviceName);
+        String serviceAddress = ServicePayload.address(payload);
 
-        Stat stat = zooKeeper.exists(path, false);
-        if (stat == null) {
-            // If it doesn't exist, create it as an ephemeral node
-            zooKeeper.create(path, serviceAddress.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        int version;
+        try {
+            // Create it as an ephemeral node
+            timed(RegistryMetrics.Operation.CREATE, () -> zooKeeper.create(path, payload, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+            version = 0;
             System.out.println("Registered service: " + serviceName + " at address: " + serviceAddress);
-        } else {
+        } catch (KeeperException.NodeExistsException e) {
             // If it exists, update the data
-            zooKeeper.setData(path, serviceAddress.getBytes(), stat.getVersion());
+            version = timed(RegistryMetrics.Operation.SET_DATA, () -> zooKeeper.setData(path, payload, -1)).getVersion();
             System.out.println("Updated service: " + serviceName + " to address: " + serviceAddress);
         }
 
         // Update the local registry map directly
-        registry.put(serviceName, serviceAddress);
-        System.out.println("Local registry updated: " + registry);
+        registered(serviceName);
+        localRegistrations.put(serviceName, payload);
+        int registeredVersion = version;
+        RegistrySnapshot updated = publish(current -> current.with(serviceName, payload, 0, registeredVersion), 0);
+        System.out.println("Local registry updated: " + updated);
+    }
+
+    // Register or update a service without blocking. Works the same way as register(), but the
+    // returned future completes from ZooKeeper's callbacks, so it is safe to call from event loops,
+    // virtual threads and ZooKeeper watchers.
+    public CompletableFuture<RegistrationResult> registerAsync(String serviceName, String serviceAddress) {
+        String path = servicePath(serviceName);
+        byte[] data = serviceAddress.getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<RegistrationResult> result = new CompletableFuture<>();
+
+        long createStart = startTimer();
+        zooKeeper.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, (rc, createdPath, ctx, name) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            stopTimer(RegistryMetrics.Operation.CREATE, createStart, code);
+            if (code == KeeperException.Code.OK) {
+                registered(serviceName);
+                localRegistrations.put(serviceName, data);
+                publish(current -> current.with(serviceName, data, 0, 0), 0);
+                result.complete(new RegistrationResult(serviceName, serviceAddress, true, 0));
+            } else if (code == KeeperException.Code.NODEEXISTS) {
+                long setStart = startTimer();
+                zooKeeper.setData(path, data, -1, (setRc, setPath, setCtx, stat) -> {
+                    KeeperException.Code setCode = KeeperException.Code.get(setRc);
+                    stopTimer(RegistryMetrics.Operation.SET_DATA, setStart, setCode);
+                    if (setCode == KeeperException.Code.OK) {
+                        registered(serviceName);
+                        localRegistrations.put(serviceName, data);
+                        publish(current -> current.with(serviceName, data, 0, stat.getVersion()), 0);
+                        result.complete(new RegistrationResult(serviceName, serviceAddress, false, stat.getVersion()));
+                    } else {
+                        result.completeExceptionally(KeeperException.create(setCode, setPath));
+                    }
+                }, null);
+            } else {
+                result.completeExceptionally(KeeperException.create(code, createdPath));
+            }
+        }, null);
+        return result;
+    }
+
+    // Register or update many services, using a few multi() transactions rather than two round
+    // trips per service. Each batch first tries to create every service; if any already exist, their
+    // versions are read with pipelined exists calls and the batch is retried as a mix of creates
+    // and version-checked updates. Returns the number of ZooKeeper round trips it took.
+    public int registerAll(Map<String, String> services) throws KeeperException, InterruptedException {
+        Map<String, byte[]> payloads = new HashMap<>(services.size() * 4 / 3 + 1);
+        for (Map.Entry<String, String> service : services.entrySet()) {
+            payloads.put(service.getKey(), service.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        return registerPayloads(payloads);
+    }
+
+    private int registerPayloads(Map<String, byte[]> payloads) throws KeeperException, InterruptedException {
+        List<Map.Entry<String, byte[]>> entries = new ArrayList<>(payloads.entrySet());
+        int roundTrips = 0;
+        for (int start = 0; start < entries.size(); start += MAX_MULTI_OPS) {
+            List<Map.Entry<String, byte[]>> batch = entries.subList(start, Math.min(start + MAX_MULTI_OPS, entries.size()));
+            roundTrips += registerBatch(batch);
+        }
+
+        for (String serviceName : payloads.keySet()) {
+            registered(serviceName);
+        }
+        localRegistrations.putAll(payloads);
+        RegistrySnapshot updated = publish(current -> current.withAll(payloads), 0);
+        System.out.println("Registered " + payloads.size() + " services in " + roundTrips + " round trips");
+        System.out.println("Local registry updated: " + updated);
+        return roundTrips;
+    }
+
+    // Register one batch of services in a single transaction, returning the round trips it took
+    private int registerBatch(List<Map.Entry<String, byte[]>> batch) throws KeeperException, InterruptedException {
+        List<Op> ops = new ArrayList<>(batch.size());
+        for (Map.Entry<String, byte[]> service : batch) {
+            ops.add(Op.create(servicePath(service.getKey()), service.getValue(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+        }
+        int roundTrips = 1;
+        while (true) {
+            try {
+                timed(RegistryMetrics.Operation.MULTI, () -> zooKeeper.multi(ops));
+                return roundTrips;
+            } catch (KeeperException.NodeExistsException | KeeperException.BadVersionException e) {
+                // Some services already exist (or changed under us), so look them up and retry
+            } catch (KeeperException.NoNodeException e) {
+                // Only worth retrying if a service being updated was deleted under us. A create
+                // fails this way when its parent is missing, which another pass won't fix.
+                if (!(failedOp(ops, e) instanceof Op.SetData)) {
+                    throw e;
+                }
+            }
+
+            List<Stat> stats = existsAll(batch);
+            roundTrips += 2;
+            ops.clear();
+            for (int i = 0; i < batch.size(); i++) {
+                String path = servicePath(batch.get(i).getKey());
+                byte[] data = batch.get(i).getValue();
+                Stat stat = stats.get(i);
+                if (stat == null) {
+                    ops.add(Op.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL));
+                } else {
+                    ops.add(Op.setData(path, data, stat.getVersion()));
+                }
+            }
+        }
+    }
+
+    // The operation that made a multi() fail, or null if the results don't say
+    private static Op failedOp(List<Op> ops, KeeperException e) {
+        List<OpResult> results = e.getResults();
+        for (int i = 0; results != null && i < results.size() && i < ops.size(); i++) {
+            OpResult result = results.get(i);
+            if (result instanceof OpResult.ErrorResult && ((OpResult.ErrorResult) result).getErr() == e.code().intValue()) {
+                return ops.get(i);
+            }
+        }
+        return null;
+    }
+
+    // Stat of each service in the batch (null if it doesn't exist), read with pipelined exists calls
+    private List<Stat> existsAll(List<Map.Entry<String, byte[]>> batch) throws KeeperException, InterruptedException {
+        Stat[] stats = new Stat[batch.size()];
+        KeeperException[] error = new KeeperException[1];
+        CountDownLatch done = new CountDownLatch(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            int index = i;
+            long start = startTimer();
+            zooKeeper.exists(servicePath(batch.get(i).getKey()), false, (rc, path, ctx, stat) -> {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                stopTimer(RegistryMetrics.Operation.EXISTS, start, code);
+                if (code == KeeperException.Code.OK) {
+                    stats[index] = stat;
+                } else if (code != KeeperException.Code.NONODE) {
+                    error[0] = KeeperException.create(code, path);
+                }
+                done.countDown();
+            }, null);
+        }
+        done.await();
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return Arrays.asList(stats);
+    }
+
+    // Register one instance of a service, alongside any other instances of the same service.
+    // Instances are ephemeral sequential children of /instances/<name>, which is created as a
+    // container node so ZooKeeper removes it once the last instance has gone.
+    // Returns the path of the instance's znode.
+    public String registerInstance(String serviceName, String serviceAddress) throws KeeperException, InterruptedException {
+        return registerInstance(serviceName, serviceAddress.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Register one instance of a service with a payload built by ServicePayload.builder(), e.g. so
+    // that a HealthReporter can keep its load up to date
+    public String registerInstance(String serviceName, byte[] payload) throws KeeperException, InterruptedException {
+        String servicePath = instancesPath(serviceName);
+        while (true) {
+            try {
+                String instancePath = timed(RegistryMetrics.Operation.CREATE, () -> zooKeeper.create(servicePath + "/instance-",
+                        payload, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+                System.out.println("Registered instance of service: " + serviceName + " at address: " + ServicePayload.address(payload));
+                localInstances.put(instancePath, serviceName);
+                localInstancePayloads.put(instancePath, payload);
+                return instancePath;
+            } catch (KeeperException.NoNodeException e) {
+                // First instance of this service, so create its container node and try again
+                try {
+                    timed(RegistryMetrics.Operation.CREATE, () -> zooKeeper.create(servicePath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.CONTAINER));
+                } catch (KeeperException.NodeExistsException ignored) {
+                    // Another instance created it first
+                } catch (KeeperException.NoNodeException noRoot) {
+                    // First instance of any service
+                    try {
+                        timed(RegistryMetrics.Operation.CREATE, () -> zooKeeper.create(INSTANCES_ZNODE, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT));
+                    } catch (KeeperException.NodeExistsException ignored) {
+                        // Created by another client
+                    }
+                }
+            }
+        }
+    }
+
+    // Remove a service this process registered, so that other clients see it go straight away
+    // instead of when the session ends. Does nothing if it isn't registered.
+    public void unregister(String serviceName) throws KeeperException, InterruptedException {
+        localRegistrations.remove(serviceName);
+        try {
+            timed(RegistryMetrics.Operation.DELETE, () -> {
+                zooKeeper.delete(servicePath(serviceName), -1);
+                return null;
+            });
+            System.out.println("Unregistered service: " + serviceName);
+        } catch (KeeperException.NoNodeException ignored) {
+            // Already gone
+        }
+        publish(current -> current.without(serviceName), 0);
+    }
+
+    // Remove every service and instance this process registered, with pipelined deletes so that
+    // shutting down takes one round trip however many there are. Returns the number removed.
+    public int unregisterAll() throws KeeperException, InterruptedException {
+        Set<String> serviceNames = new HashSet<>(localRegistrations.keySet());
+        List<String> paths = new ArrayList<>(serviceNames.size() + localInstances.size());
+        for (String serviceName : serviceNames) {
+            paths.add(servicePath(serviceName));
+        }
+        paths.addAll(localInstances.keySet());
+        localRegistrations.keySet().removeAll(serviceNames);
+        localInstances.keySet().removeAll(paths);
+        localInstancePayloads.keySet().removeAll(paths);
+
+        AtomicInteger removed = new AtomicInteger();
+        KeeperException[] error = new KeeperException[1];
+        CountDownLatch done = new CountDownLatch(paths.size());
+        for (String path : paths) {
+            long start = startTimer();
+            zooKeeper.delete(path, -1, (rc, deletedPath, ctx) -> {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                stopTimer(RegistryMetrics.Operation.DELETE, start, code);
+                if (code == KeeperException.Code.OK) {
+                    removed.incrementAndGet();
+                } else if (code != KeeperException.Code.NONODE) {
+                    error[0] = KeeperException.create(code, deletedPath);
+                }
+                done.countDown();
+            }, null);
+        }
+        done.await();
+        publish(current -> {
+            RegistrySnapshot next = current;
+            for (String serviceName : serviceNames) {
+                next = next.without(serviceName);
+            }
+            return next;
+        }, 0);
+        if (error[0] != null) {
+            throw error[0];
+        }
+        System.out.println("Unregistered " + removed.get() + " services");
+        return removed.get();
+    }
+
+    // Path of the znode holding a service's instances
+    static String instancesPath(String serviceName) {
+        return INSTANCES_ZNODE + "/" + serviceName;
+    }
+
+    // Where an instance registered by this process lives now. Instances get a new path when they
+    // are registered again after the session expires.
+    String currentInstancePath(String instancePath) {
+        String moved;
+        while ((moved = movedInstances.get(instancePath)) != null) {
+            instancePath = moved;
+        }
+        return instancePath;
+    }
+
+    // Remember an instance's latest payload, so it is what gets registered again after expiry
+    void instanceUpdated(String instancePath, byte[] payload) {
+        localInstancePayloads.replace(instancePath, payload);
+    }
+
+    // ZooKeeper handle shared with helpers built on top of the registry
+    ZooKeeper getZooKeeper() {
+        return zooKeeper;
     }
 
 }
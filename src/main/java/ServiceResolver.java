@@ -0,0 +1,205 @@
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client-side load balancer over the instances registered with ServiceRegistry.registerInstance().
+// Each tracked service keeps a watch on its znode, and its instances are held in an
+// immutable InstanceSet that is replaced whenever they change. pick() is a map lookup plus the
+// strategy's lock-free selection, so it can be called on a request hot path.
+// With WEIGHTED each instance's znode is watched as well, so the load a HealthReporter publishes
+// into it re-weights just that instance.
+public class ServiceResolver implements Watcher {
+    // How pick() chooses between the instances of a service
+    public enum Strategy {
+        ROUND_ROBIN,
+        RANDOM,
+        POWER_OF_TWO_CHOICES,  // Fewer requests in flight, as reported through release()
+        CONSISTENT_HASH,       // Same key, same instance, while the instance set is stable
+        WEIGHTED               // Random, in proportion to weight, health and reported load (see InstanceSet.weightOf)
+    }
+
+    private final ServiceRegistry registry;
+    private final Strategy strategy;
+    private final Map<String, InstanceSet> instances = new ConcurrentHashMap<>();
+    private final AtomicLong loadGeneration = new AtomicLong();
+
+    // Constructor
+    public ServiceResolver(ServiceRegistry registry, Strategy strategy) {
+        this.registry = registry;
+        this.strategy = strategy;
+        registry.addRecoveryHook(this::reloadAll);
+    }
+
+    // Start tracking the instances of a service, loading the current ones
+    public void track(String serviceName) throws KeeperException, InterruptedException {
+        try {
+            loadInstances(serviceName).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException) {
+                throw (KeeperException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Stop tracking a service. Its watch is left to fire once and is then not re-armed.
+    public void untrack(String serviceName) {
+        instances.remove(serviceName);
+    }
+
+    // Pick an instance of a service using the resolver's strategy, or null if there are none.
+    // With CONSISTENT_HASH use pick(serviceName, key); without a key it picks in turn.
+    public String pick(String serviceName) {
+        InstanceSet set = instances.get(serviceName);
+        if (set == null) {
+            return null;
+        }
+        switch (strategy) {
+            case RANDOM:
+                return set.random();
+            case POWER_OF_TWO_CHOICES:
+                return set.powerOfTwoChoices();
+            case WEIGHTED:
+                return set.weighted();
+            default:
+                return set.roundRobin();
+        }
+    }
+
+    // Pick an instance of a service for a request key. With CONSISTENT_HASH the same key maps to
+    // the same instance; other strategies ignore the key.
+    public String pick(String serviceName, CharSequence key) {
+        if (strategy != Strategy.CONSISTENT_HASH) {
+            return pick(serviceName);
+        }
+        InstanceSet set = instances.get(serviceName);
+        return set == null ? null : set.consistentHash(key);
+    }
+
+    // Report that a request to an instance picked with POWER_OF_TWO_CHOICES has finished
+    public void release(String serviceName, String address) {
+        InstanceSet set = instances.get(serviceName);
+        if (set != null) {
+            set.release(address);
+        }
+    }
+
+    // Current addresses of a service's instances
+    public List<String> getInstances(String serviceName) {
+        InstanceSet set = instances.get(serviceName);
+        return set == null ? Collections.emptyList() : Arrays.asList(set.getAddresses());
+    }
+
+    // Reload a tracked service when its instances change, or re-weight an instance when its
+    // payload changes. Session events are left to the registry, which calls reloadAll() once an
+    // expired session has been replaced.
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            return;
+        }
+        if (event.getType() == Event.EventType.NodeDataChanged) {
+            reweigh(event.getPath());
+            return;
+        }
+        String serviceName = event.getPath().substring(event.getPath().lastIndexOf('/') + 1);
+        if (instances.containsKey(serviceName)) {
+            loadInstances(serviceName).whenComplete((set, error) -> {
+                if (error != null) {
+                    error.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // Load every tracked service again, setting up its watches on a new session. Instances that
+    // were registered again while the session was gone have new paths, so nothing is kept.
+    private void reloadAll() throws KeeperException, InterruptedException {
+        List<CompletableFuture<InstanceSet>> loads = new ArrayList<>();
+        for (String serviceName : instances.keySet()) {
+            loads.add(loadInstances(serviceName));
+        }
+        try {
+            CompletableFuture.allOf(loads.toArray(new CompletableFuture[0])).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException) {
+                throw (KeeperException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Read one instance's payload again, leaving a new data watch, and update its weight
+    private void reweigh(String instancePath) {
+        String servicePath = instancePath.substring(0, instancePath.lastIndexOf('/'));
+        String serviceName = servicePath.substring(servicePath.lastIndexOf('/') + 1);
+        if (!instances.containsKey(serviceName)) {
+            return;
+        }
+        RegistryMetrics metrics = registry.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        registry.getZooKeeper().getData(instancePath, this, (rc, path, ctx, data, stat) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (metrics.isEnabled()) {
+                metrics.zooKeeperCall(RegistryMetrics.Operation.GET_DATA, System.nanoTime() - start, code);
+            }
+            if (code == KeeperException.Code.OK) {
+                ServicePayload payload = new ServicePayload().wrap(data);
+                String address = payload.address();
+                double weight = InstanceSet.weightOf(payload);
+                instances.computeIfPresent(serviceName, (name, current) -> current.reweighted(address, weight));
+            }
+            // NONODE: the instance has gone, which the watch on the service picks up
+        }, null);
+    }
+
+    // Read the instances of a service, leaving a watch on its znode, and publish them unless a
+    // newer load has already been published
+    private CompletableFuture<InstanceSet> loadInstances(String serviceName) {
+        long generation = loadGeneration.incrementAndGet();
+        ZooKeeper zooKeeper = registry.getZooKeeper();
+        String servicePath = ServiceRegistry.instancesPath(serviceName);
+        CompletableFuture<InstanceSet> result = new CompletableFuture<>();
+        Watcher dataWatcher = strategy == Strategy.WEIGHTED ? this : null;
+        SnapshotLoader.load(zooKeeper, servicePath, this, dataWatcher, ServiceRegistry.MAX_IN_FLIGHT, registry.getMetrics()).whenComplete((loaded, error) -> {
+            if (error instanceof KeeperException.NoNodeException) {
+                // The service has no instances left; keep watching for it to come back
+                zooKeeper.exists(servicePath, this, (rc, path, ctx, stat) -> {
+                    if (stat != null && instances.containsKey(serviceName)) {
+                        loadInstances(serviceName);  // It came back before the watch was set
+                    }
+                }, null);
+                loaded = new SnapshotLoader.Loaded(Collections.emptyMap());
+            } else if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            String[] addresses = new String[loaded.entries.size()];
+            double[] weights = new double[addresses.length];
+            ServicePayload payload = new ServicePayload();
+            int i = 0;
+            for (RegistrySnapshot.Entry entry : loaded.entries.values()) {
+                String address = entry.address();
+                if (address != null) {  // Instances whose payload can't be read are left out
+                    addresses[i] = address;
+                    weights[i++] = InstanceSet.weightOf(payload.wrap(entry.payload));
+                }
+            }
+            InstanceSet next = new InstanceSet(generation, Arrays.copyOf(addresses, i), Arrays.copyOf(weights, i));
+            result.complete(instances.merge(serviceName, next,
+                    (current, candidate) -> candidate.getGeneration() > current.getGeneration() ? candidate : current));
+        });
+        return result;
+    }
+}
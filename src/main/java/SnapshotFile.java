@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+// On-disk copy of the last known registry, so a process can start serving it before ZooKeeper is
+// reachable. The file is written through a FileChannel to a temporary file that is then moved into
+// place, so readers never see a partial write, and read back through a memory map.
+//
+// Layout (big-endian):
+//   int magic, int format, long snapshot version, int entry count,
+//   entries of { long zxid, int name length, name bytes, int payload length, payload bytes },
+//   long CRC32 of everything before it
+final class SnapshotFile {
+    private static final int MAGIC = 0x5253_4e50;  // "RSNP"
+    // Format 1 stored addresses as text, which reads the same as a plain-text payload
+    private static final int FORMAT = 2;
+    private static final int OLDEST_FORMAT = 1;
+
+    private final Path path;
+
+    SnapshotFile(Path path) {
+        this.path = path;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    // Write the snapshot, replacing any previous one
+    void write(RegistrySnapshot snapshot) throws IOException {
+        Set<String> services = snapshot.getServices().keySet();
+        int size = 4 + 4 + 8 + 4 + 8;
+        Map<String, byte[][]> encoded = new HashMap<>(services.size() * 4 / 3 + 1);
+        for (String serviceName : services) {
+            byte[] name = serviceName.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = snapshot.getPayload(serviceName);
+            encoded.put(serviceName, new byte[][]{name, payload});
+            size += 8 + 4 + name.length + 4 + payload.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(FORMAT).putLong(snapshot.getVersion()).putInt(services.size());
+        for (Map.Entry<String, byte[][]> service : encoded.entrySet()) {
+            byte[][] fields = service.getValue();
+            buffer.putLong(snapshot.getZxid(service.getKey()));
+            buffer.putInt(fields[0].length).put(fields[0]);
+            buffer.putInt(fields[1].length).put(fields[1]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putLong(crc.getValue());
+        buffer.flip();
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Read the snapshot back, or return null if there is none or it is unreadable
+    RegistrySnapshot read() {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 4 + 4 + 8 + 4 + 8 || buffer.getInt() != MAGIC || !isReadable(buffer.getInt())) {
+                System.out.println("Ignoring unrecognised registry snapshot file: " + path);
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer checked = buffer.duplicate();
+            checked.position(0).limit(buffer.capacity() - 8);
+            crc.update(checked);
+            if (crc.getValue() != buffer.getLong(buffer.capacity() - 8)) {
+                System.out.println("Ignoring corrupt registry snapshot file: " + path);
+                return null;
+            }
+
+            long version = buffer.getLong();
+            int count = buffer.getInt();
+            Map<String, RegistrySnapshot.Entry> entries = new HashMap<>(count * 4 / 3 + 1);
+            for (int i = 0; i < count; i++) {
+                long zxid = buffer.getLong();
+                String name = new String(readBytes(buffer), StandardCharsets.UTF_8);
+                entries.put(name, new RegistrySnapshot.Entry(readBytes(buffer), zxid, -1));
+            }
+            return RegistrySnapshot.cached(version, entries);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Couldn't read registry snapshot file: " + path + " (" + e + ")");
+            return null;
+        }
+    }
+
+    private static boolean isReadable(int format) {
+        return format >= OLDEST_FORMAT && format <= FORMAT;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
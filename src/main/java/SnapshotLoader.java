@@ -0,0 +1,205 @@
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Loads a snapshot of every child of a znode using pipelined async getData calls.
+// Requests are issued in a sliding window: each completed read issues the next one, so at most
+// maxInFlight requests are outstanding and the caller never blocks. This matters because
+// callbacks are delivered on the ZooKeeper event thread, which is also where watches fire.
+// Given a cached snapshot, children whose zxid is known are checked with exists() first and only
+// read again if they have changed since.
+class SnapshotLoader implements AsyncCallback.DataCallback, AsyncCallback.StatCallback {
+    // Services read by a load
+    static final class Loaded {
+        final Map<String, RegistrySnapshot.Entry> entries;
+
+        Loaded(Map<String, RegistrySnapshot.Entry> entries) {
+            this.entries = entries;
+        }
+    }
+
+    private final ZooKeeper zooKeeper;
+    private final String parentPath;
+    private final List<String> children;
+    private final Watcher dataWatcher;
+    private final RegistrySnapshot cached;
+    private final RegistryMetrics metrics;
+    private final long[] issuedAt;
+    // Only written from callbacks, which all run on the ZooKeeper event thread
+    private final Loaded loaded;
+    private final CompletableFuture<Loaded> result = new CompletableFuture<>();
+    private final AtomicInteger nextIndex = new AtomicInteger();
+    private final AtomicInteger pending;
+
+    private SnapshotLoader(ZooKeeper zooKeeper, String parentPath, List<String> children, Watcher dataWatcher,
+                           RegistrySnapshot cached, RegistryMetrics metrics) {
+        this.zooKeeper = zooKeeper;
+        this.parentPath = parentPath;
+        this.children = children;
+        this.dataWatcher = dataWatcher;
+        this.cached = cached;
+        this.metrics = metrics;
+        this.issuedAt = metrics.isEnabled() ? new long[children.size()] : null;
+        this.loaded = new Loaded(new HashMap<>(children.size() * 4 / 3 + 1));
+        this.pending = new AtomicInteger(children.size());
+    }
+
+    // Read the children of parentPath (leaving childWatcher on it), then the data of each child.
+    // dataWatcher may be null, in which case no data watches are left behind.
+    static CompletableFuture<Loaded> load(ZooKeeper zooKeeper, String parentPath, Watcher childWatcher,
+                                          Watcher dataWatcher, int maxInFlight, RegistryMetrics metrics) {
+        return reconcile(zooKeeper, parentPath, childWatcher, dataWatcher, RegistrySnapshot.EMPTY, maxInFlight, metrics);
+    }
+
+    // Like load(), but children already in the cached snapshot with a known zxid are only read
+    // again if their znode has been modified since
+    static CompletableFuture<Loaded> reconcile(ZooKeeper zooKeeper, String parentPath, Watcher childWatcher,
+                                               Watcher dataWatcher, RegistrySnapshot cached, int maxInFlight,
+                                               RegistryMetrics metrics) {
+        CompletableFuture<Loaded> result = new CompletableFuture<>();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        zooKeeper.getChildren(parentPath, childWatcher, (rc, path, ctx, children) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (metrics.isEnabled()) {
+                metrics.zooKeeperCall(RegistryMetrics.Operation.GET_CHILDREN, System.nanoTime() - start, code);
+            }
+            if (code != KeeperException.Code.OK) {
+                result.completeExceptionally(KeeperException.create(code, path));
+                return;
+            }
+            start(new SnapshotLoader(zooKeeper, parentPath, children, dataWatcher, cached, metrics), maxInFlight)
+                    .whenComplete((loaded, error) -> {
+                        if (error != null) {
+                            result.completeExceptionally(error);
+                        } else {
+                            result.complete(loaded);
+                        }
+                    });
+        }, null);
+        return result;
+    }
+
+    // Read the data of the given children of parentPath
+    static CompletableFuture<Loaded> load(ZooKeeper zooKeeper, String parentPath, List<String> children,
+                                          Watcher dataWatcher, int maxInFlight, RegistryMetrics metrics) {
+        return start(new SnapshotLoader(zooKeeper, parentPath, children, dataWatcher, RegistrySnapshot.EMPTY, metrics), maxInFlight);
+    }
+
+    private static CompletableFuture<Loaded> start(SnapshotLoader loader, int maxInFlight) {
+        if (loader.children.isEmpty()) {
+            loader.result.complete(loader.loaded);
+            return loader.result;
+        }
+        int window = Math.min(Math.max(maxInFlight, 1), loader.children.size());
+        for (int i = 0; i < window; i++) {
+            loader.issueNext();
+        }
+        return loader.result;
+    }
+
+    private void issueNext() {
+        int index = nextIndex.getAndIncrement();
+        if (index < children.size()) {
+            String child = children.get(index);
+            if (cached.getZxid(child) != 0) {
+                // exists() leaves the same data watch that getData() would
+                startTimer(index);
+                zooKeeper.exists(parentPath + "/" + child, dataWatcher, this, index);
+            } else {
+                issueGetData(index);
+            }
+        }
+    }
+
+    private void issueGetData(int index) {
+        startTimer(index);
+        zooKeeper.getData(parentPath + "/" + children.get(index), dataWatcher, this, index);
+    }
+
+    // Result of checking a cached child. Anything thrown here would be lost on the ZooKeeper event
+    // thread and leave the load hanging, so it fails the load instead.
+    @Override
+    public void processResult(int rc, String path, Object ctx, Stat stat) {
+        try {
+            checked(rc, path, ctx, stat);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void checked(int rc, String path, Object ctx, Stat stat) {
+        if (result.isDone()) {
+            return;
+        }
+        int index = (Integer) ctx;
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        stopTimer(RegistryMetrics.Operation.EXISTS, index, code);
+        String child = children.get(index);
+        if (code == KeeperException.Code.OK) {
+            if (stat.getMzxid() != cached.getZxid(child)) {
+                issueGetData(index);  // Changed since it was cached, so read it again in this slot
+                return;
+            }
+            loaded.entries.put(child, new RegistrySnapshot.Entry(cached.getPayload(child), stat.getMzxid(), stat.getVersion()));
+        } else if (code != KeeperException.Code.NONODE) {
+            result.completeExceptionally(KeeperException.create(code, path));
+            return;
+        }
+        completed();
+    }
+
+    // Result of reading a child
+    @Override
+    public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        try {
+            read(rc, path, ctx, data, stat);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void read(int rc, String path, Object ctx, byte[] data, Stat stat) {
+        if (result.isDone()) {
+            return;
+        }
+        int index = (Integer) ctx;
+        KeeperException.Code code = KeeperException.Code.get(rc);
+        stopTimer(RegistryMetrics.Operation.GET_DATA, index, code);
+        if (code == KeeperException.Code.OK) {
+            loaded.entries.put(children.get(index), new RegistrySnapshot.Entry(data, stat.getMzxid(), stat.getVersion()));
+        } else if (code != KeeperException.Code.NONODE) {
+            // NONODE just means the child went away after it was listed, so it is left out
+            result.completeExceptionally(KeeperException.create(code, path));
+            return;
+        }
+        completed();
+    }
+
+    private void completed() {
+        if (pending.decrementAndGet() == 0) {
+            result.complete(loaded);
+        } else {
+            issueNext();
+        }
+    }
+
+    private void startTimer(int index) {
+        if (issuedAt != null) {
+            issuedAt[index] = System.nanoTime();
+        }
+    }
+
+    private void stopTimer(RegistryMetrics.Operation operation, int index, KeeperException.Code code) {
+        if (issuedAt != null) {
+            metrics.zooKeeperCall(operation, System.nanoTime() - issuedAt[index], code);
+        }
+    }
+}
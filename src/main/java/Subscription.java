@@ -0,0 +1,52 @@
+import org.apache.zookeeper.KeeperException;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Services a client has subscribed to through ServiceRegistry.subscribe(). Only subscribed
+// services are watched and held in the registry, and services can be added to or removed from a
+// subscription at any time.
+public final class Subscription {
+    // Told about every change to a subscribed service
+    public interface Listener {
+        // The service was registered or its address changed, or it was removed (address null).
+        // Called on the ZooKeeper event thread, so it must not block.
+        void serviceChanged(String serviceName, String serviceAddress);
+    }
+
+    private final Subscriptions subscriptions;
+    private final Listener listener;
+    private final Set<String> serviceNames = ConcurrentHashMap.newKeySet();
+
+    Subscription(Subscriptions subscriptions, Listener listener) {
+        this.subscriptions = subscriptions;
+        this.listener = listener;
+    }
+
+    // Subscribe to more services, returning once their current addresses have been read
+    public void add(Set<String> serviceNames) throws KeeperException, InterruptedException {
+        this.serviceNames.addAll(serviceNames);
+        subscriptions.subscribe(this, serviceNames);
+    }
+
+    // Stop receiving changes to the given services
+    public void remove(Set<String> serviceNames) {
+        this.serviceNames.removeAll(serviceNames);
+        subscriptions.unsubscribe(this, serviceNames);
+    }
+
+    // Names of the services currently subscribed to
+    public Set<String> getServiceNames() {
+        return Collections.unmodifiableSet(serviceNames);
+    }
+
+    // Unsubscribe from everything
+    public void close() {
+        remove(Set.copyOf(serviceNames));
+    }
+
+    Listener getListener() {
+        return listener;
+    }
+}
@@ -0,0 +1,188 @@
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+// Watches the services that have been subscribed to, one znode at a time, instead of every child
+// of /services. A subscribed service has a data watch while it exists and an exists watch while it
+// doesn't, and its address is kept in the registry's snapshot. A service subscribed to more than
+// once is watched once; when the last subscription to it goes, its watches are removed and, unless
+// the registry is mirroring all of /services, so is its address.
+class Subscriptions implements Watcher {
+    private final ServiceRegistry registry;
+    private final Map<String, Set<Subscription>> subscribers = new ConcurrentHashMap<>();
+
+    Subscriptions(ServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    void subscribe(Subscription subscription, Set<String> serviceNames) throws KeeperException, InterruptedException {
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (String serviceName : serviceNames) {
+            boolean first = addSubscriber(serviceName, subscription);
+            if (first) {
+                reads.add(read(serviceName));
+            } else {
+                // Already watched, so the registry has its address if it is registered
+                String serviceAddress = registry.getSnapshot().get(serviceName);
+                if (serviceAddress != null) {
+                    subscription.getListener().serviceChanged(serviceName, serviceAddress);
+                }
+            }
+        }
+        await(reads);
+    }
+
+    void unsubscribe(Subscription subscription, Set<String> serviceNames) {
+        ZooKeeper zooKeeper = registry.getZooKeeper();
+        for (String serviceName : serviceNames) {
+            if (!removeSubscriber(serviceName, subscription)) {
+                continue;
+            }
+            zooKeeper.removeWatches(registry.servicePath(serviceName), this, WatcherType.Any, true, (rc, path, ctx) -> {
+                // NOWATCHER just means the watch had already fired
+            }, null);
+            if (!registry.isMirroringAll()) {
+                registry.publish(current -> current.without(serviceName), 0);
+            }
+        }
+    }
+
+    // Read every subscribed service again, setting up its watches on a new session
+    void restore() throws KeeperException, InterruptedException {
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (String serviceName : subscribers.keySet()) {
+            reads.add(read(serviceName));
+        }
+        await(reads);
+    }
+
+    private static void await(List<CompletableFuture<Void>> reads) throws KeeperException, InterruptedException {
+        try {
+            CompletableFuture.allOf(reads.toArray(new CompletableFuture[0])).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KeeperException) {
+                throw (KeeperException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Returns true if this is the service's first subscriber
+    private boolean addSubscriber(String serviceName, Subscription subscription) {
+        boolean[] first = new boolean[1];
+        subscribers.compute(serviceName, (name, current) -> {
+            Set<Subscription> next = current == null ? ConcurrentHashMap.newKeySet() : current;
+            first[0] = current == null;
+            next.add(subscription);
+            return next;
+        });
+        return first[0];
+    }
+
+    // Returns true if this was the service's last subscriber
+    private boolean removeSubscriber(String serviceName, Subscription subscription) {
+        boolean[] last = new boolean[1];
+        subscribers.computeIfPresent(serviceName, (name, current) -> {
+            current.remove(subscription);
+            last[0] = current.isEmpty();
+            return last[0] ? null : current;
+        });
+        return last[0];
+    }
+
+    // Re-read a subscribed service when it is created, changed or deleted
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None || event.getPath() == null) {
+            return;
+        }
+        String serviceName = event.getPath().substring(event.getPath().lastIndexOf('/') + 1);
+        if (subscribers.containsKey(serviceName)) {
+            read(serviceName).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    registry.getMetrics().updateFailed();
+                    error.printStackTrace();
+                }
+            });
+        }
+    }
+
+    // Read a service's address, leaving a data watch on it, or an exists watch if it isn't registered
+    private CompletableFuture<Void> read(String serviceName) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        ZooKeeper zooKeeper = registry.getZooKeeper();
+        RegistryMetrics metrics = registry.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        zooKeeper.getData(registry.servicePath(serviceName), this, (rc, path, ctx, data, stat) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (metrics.isEnabled()) {
+                metrics.zooKeeperCall(RegistryMetrics.Operation.GET_DATA, System.nanoTime() - start, code);
+            }
+            if (!subscribers.containsKey(serviceName)) {
+                result.complete(null);  // Unsubscribed while the read was in flight
+            } else if (code == KeeperException.Code.OK) {
+                metrics.refreshStarted(false);
+                RegistrySnapshot next = registry.publish(current -> current.with(serviceName, data, stat.getMzxid(), stat.getVersion()), 0);
+                notifySubscribers(serviceName, next.get(serviceName));
+                result.complete(null);
+            } else if (code == KeeperException.Code.NONODE) {
+                if (registry.getSnapshot().get(serviceName) != null) {
+                    registry.publish(current -> current.without(serviceName), 0);
+                    notifySubscribers(serviceName, null);
+                }
+                watchForCreation(serviceName, result);
+            } else {
+                result.completeExceptionally(KeeperException.create(code, path));
+            }
+        }, null);
+        return result;
+    }
+
+    private void watchForCreation(String serviceName, CompletableFuture<Void> result) {
+        RegistryMetrics metrics = registry.getMetrics();
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        registry.getZooKeeper().exists(registry.servicePath(serviceName), this, (rc, path, ctx, stat) -> {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (metrics.isEnabled()) {
+                metrics.zooKeeperCall(RegistryMetrics.Operation.EXISTS, System.nanoTime() - start, code);
+            }
+            if (code == KeeperException.Code.OK) {
+                // Registered between the two calls; the exists watch is now a data watch, so read it
+                read(serviceName).whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(null);
+                    }
+                });
+            } else if (code == KeeperException.Code.NONODE) {
+                result.complete(null);
+            } else {
+                result.completeExceptionally(KeeperException.create(code, path));
+            }
+        }, null);
+    }
+
+    private void notifySubscribers(String serviceName, String serviceAddress) {
+        Set<Subscription> current = subscribers.get(serviceName);
+        if (current == null) {
+            return;
+        }
+        for (Subscription subscription : current) {
+            try {
+                subscription.getListener().serviceChanged(serviceName, serviceAddress);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.*;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApplicationTest {
+
+    private static TestingServer zkServer;
+    private static ZooKeeper zooKeeper;
+    private static final String ZOOKEEPER_ADDRESS = "localhost:2185";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String SERVICES_PARENT_ZNODE = "/services";
+
+    private ServiceRegistry registry;
+    private Application application;
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        zkServer = new TestingServer(2185, true);
+        zooKeeper = new ZooKeeper(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, watchedEvent -> {
+        });
+    }
+
+    @BeforeEach
+    void createApplication() throws IOException, InterruptedException, KeeperException {
+        registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        application = new Application(registry);
+    }
+
+    @AfterEach
+    void tearDown() throws KeeperException, InterruptedException {
+        application.shutdown();
+        if (zooKeeper.exists(SERVICES_PARENT_ZNODE, false) != null) {
+            ZKUtil.deleteRecursive(zooKeeper, SERVICES_PARENT_ZNODE);
+        }
+    }
+
+    @AfterAll
+    public static void shutDown() throws Exception {
+        zkServer.stop();
+    }
+
+    @Test
+    void readConfigTest(@TempDir Path directory) throws IOException {
+        Path configFile = directory.resolve("services.properties");
+        Files.write(configFile, ("# Services on this host\n"
+                + "service1=host1:1234\n"
+                + "service2 = host2:1234  \n"
+                + "\n"
+                + "service3:host3\\:1234\n").getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(Map.of("service1", "host1:1234", "service2", "host2:1234", "service3", "host3:1234"),
+                Application.readConfig(configFile));
+    }
+
+    @Test
+    void updateAddsChangesAndRemovesServicesTest() throws KeeperException, InterruptedException {
+        application.update(Map.of("service1", "host1:1234", "service2", "host2:1234"));
+        assertEquals("host1:1234", addressOf("service1"));
+        assertEquals("host2:1234", addressOf("service2"));
+
+        application.update(Map.of("service1", "host1:5678", "service3", "host3:1234"));
+        assertEquals("host1:5678", addressOf("service1"));
+        assertNull(addressOf("service2"));
+        assertEquals("host3:1234", addressOf("service3"));
+        assertEquals(Map.of("service1", "host1:5678", "service3", "host3:1234"), registry.getServices());
+    }
+
+    @Test
+    void failedUpdateIsRetriedTest() throws KeeperException, InterruptedException {
+        application.update(Map.of("service1", "host1:1234"));
+
+        // Its parent doesn't exist, so this one registration fails while the rest go through
+        Map<String, String> next = Map.of("service1", "host1:5678", "missing/service2", "host2:1234", "service3", "host3:1234");
+        assertThrows(KeeperException.NoNodeException.class, () -> application.update(next));
+        assertEquals("host1:5678", addressOf("service1"));
+        assertEquals("host3:1234", addressOf("service3"));
+
+        // The failed service wasn't recorded as registered, so the same config tries it again
+        zooKeeper.create(SERVICES_PARENT_ZNODE + "/missing", new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        application.update(next);
+        assertEquals("host2:1234", addressOf("missing/service2"));
+    }
+
+    @Test
+    void shutdownRemovesServicesTest() throws KeeperException, InterruptedException {
+        application.update(Map.of("service1", "host1:1234", "service2", "host2:1234"));
+
+        application.shutdown();
+        assertNull(zooKeeper.exists(SERVICES_PARENT_ZNODE + "/service1", false));
+        assertNull(zooKeeper.exists(SERVICES_PARENT_ZNODE + "/service2", false));
+    }
+
+    private String addressOf(String serviceName) throws KeeperException, InterruptedException {
+        try {
+            return new String(zooKeeper.getData(SERVICES_PARENT_ZNODE + "/" + serviceName, false, null), StandardCharsets.UTF_8);
+        } catch (KeeperException.NoNodeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.*;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LookupServerTest {
+
+    private static TestingServer zkServer;
+    private static ZooKeeper zooKeeper;
+    private static final String ZOOKEEPER_ADDRESS = "localhost:2184";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String SERVICES_PARENT_ZNODE = "/services";
+
+    private ServiceRegistry registry;
+    private LookupServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        // As Application does; without it each request waits on the client's delayed ACK
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        zkServer = new TestingServer(2184, true);
+        zooKeeper = new ZooKeeper(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, watchedEvent -> {
+        });
+    }
+
+    @BeforeEach
+    void createServer() throws IOException, InterruptedException, KeeperException {
+        registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        registry.register("service1", "host1:1234");
+        server = new LookupServer(registry, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws KeeperException, InterruptedException {
+        server.close();
+        registry.close();
+        if (zooKeeper.exists(SERVICES_PARENT_ZNODE, false) != null) {
+            ZKUtil.deleteRecursive(zooKeeper, SERVICES_PARENT_ZNODE);
+        }
+    }
+
+    @AfterAll
+    public static void shutDown() throws Exception {
+        zkServer.stop();
+    }
+
+    @Test
+    void resolveAndSnapshotTest() throws IOException, InterruptedException, KeeperException {
+        registry.register("service2", "host2:1234");
+
+        HttpResponse<String> resolved = get("/resolve/service1");
+        assertEquals(200, resolved.statusCode());
+        assertEquals("host1:1234\n", resolved.body());
+        assertEquals(404, get("/resolve/unknown").statusCode());
+
+        HttpResponse<String> snapshot = get("/snapshot");
+        assertEquals(200, snapshot.statusCode());
+        assertEquals(Set.of("service1=host1:1234", "service2=host2:1234"), Set.of(snapshot.body().split("\n")));
+        assertEquals("1", snapshot.headers().firstValue("X-Event-Sequence").orElse(null));
+    }
+
+    @Test
+    void longPollWaitsForNextEventTest() throws Exception {
+        String since = get("/snapshot").headers().firstValue("X-Event-Sequence").orElseThrow();
+
+        // Nothing has changed, so a short poll times out empty
+        HttpResponse<String> empty = get("/events?since=" + since + "&timeout=100");
+        assertEquals(204, empty.statusCode());
+
+        CompletableFuture<HttpResponse<String>> poll = client.sendAsync(request("/events?since=" + since + "&timeout=10000"),
+                HttpResponse.BodyHandlers.ofString());
+        Thread.sleep(100);
+        assertFalse(poll.isDone());
+        registry.register("service1", "host1:5678");
+        HttpResponse<String> changed = poll.get(SESSION_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(200, changed.statusCode());
+        long next = Long.parseLong(since) + 1;
+        assertEquals(next + " changed service1 host1:5678\n", changed.body());
+
+        registry.unregister("service1");
+        HttpResponse<String> removed = get("/events?since=" + next);
+        assertEquals((next + 1) + " removed service1 host1:5678\n", removed.body());
+
+        assertEquals(410, get("/events?since=" + (next + 5)).statusCode());
+        assertEquals(400, get("/events?since=abc").statusCode());
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        return client.send(request(path), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getPort() + path)).build();
+    }
+}
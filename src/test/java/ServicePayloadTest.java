@@ -0,0 +1,112 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServicePayloadTest {
+
+    @Test
+    void binaryPayloadRoundTripTest() {
+        byte[] data = ServicePayload.builder("10.0.0.7", 8443).weight(300).zone("eu-west-1a")
+                .health(ServicePayload.Health.DEGRADED).tag("canary").tag("grpc").encode();
+
+        ServicePayload payload = new ServicePayload().wrap(data);
+        assertTrue(payload.isBinary());
+        assertTrue(payload.hostEquals("10.0.0.7"));
+        assertFalse(payload.hostEquals("10.0.0.8"));
+        assertEquals(8443, payload.port());
+        assertEquals(300, payload.weight());
+        assertTrue(payload.zoneEquals("eu-west-1a"));
+        assertEquals(ServicePayload.Health.DEGRADED, payload.health());
+        assertEquals(2, payload.tagCount());
+        assertTrue(payload.hasTag("grpc"));
+        assertFalse(payload.hasTag("http"));
+        assertEquals(Arrays.asList("canary", "grpc"), payload.tags());
+        assertEquals("10.0.0.7:8443", payload.address());
+        assertEquals("10.0.0.7:8443", ServicePayload.address(data));
+    }
+
+    // Existing znodes hold "host:port" text, which must still read as an address
+    @Test
+    void plainTextPayloadTest() {
+        byte[] data = "testhost:1234".getBytes(StandardCharsets.UTF_8);
+
+        ServicePayload payload = new ServicePayload().wrap(data);
+        assertFalse(payload.isBinary());
+        assertTrue(payload.hostEquals("testhost"));
+        assertEquals(1234, payload.port());
+        assertEquals(1, payload.weight());
+        assertEquals(ServicePayload.Health.HEALTHY, payload.health());
+        assertEquals("", payload.zone());
+        assertEquals(0, payload.tagCount());
+        assertEquals("testhost:1234", payload.address());
+        assertEquals("testhost:1234", ServicePayload.address(data));
+    }
+
+    // The flyweight reads from a buffer's position without consuming it, and can be reused
+    @Test
+    void wrapBufferSliceTest() {
+        byte[] first = ServicePayload.builder("a", 1).encode();
+        byte[] second = ServicePayload.builder("b", 2).weight(7).encode();
+        ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length).put(first).put(second);
+        buffer.position(first.length);
+
+        ServicePayload payload = new ServicePayload();
+        assertTrue(payload.wrap(buffer).hostEquals("b"));
+        assertEquals(7, payload.weight());
+        assertEquals(first.length, buffer.position());
+
+        buffer.position(0).limit(first.length);
+        assertTrue(payload.wrap(buffer).hostEquals("a"));
+        assertEquals(1, payload.port());
+    }
+
+    @Test
+    void loadPayloadRoundTripTest() {
+        byte[] plain = ServicePayload.builder("10.0.0.7", 8443).encode();
+        byte[] data = ServicePayload.builder("10.0.0.7", 8443).weight(5).tag("grpc").load(12, 45_000, 130).encode();
+
+        ServicePayload payload = new ServicePayload().wrap(plain);
+        assertFalse(payload.hasLoad());
+        assertEquals(0, payload.inFlight());
+
+        payload.wrap(data);
+        assertTrue(payload.hasLoad());
+        assertEquals(12, payload.inFlight());
+        assertEquals(45_000, payload.p99Micros());
+        assertEquals(100, payload.cpuPercent());
+        assertEquals(5, payload.weight());
+        assertTrue(payload.hasTag("grpc"));
+        assertEquals("10.0.0.7:8443", payload.address());
+        assertEquals(ServicePayload.FORMAT, plain[1], "payloads without load stay readable by older clients");
+    }
+
+    // An unknown format or a truncated payload reads as unhealthy instead of throwing
+    @Test
+    void unreadablePayloadTest() {
+        byte[] unknown = ServicePayload.builder("testhost", 1234).tag("grpc").encode();
+        unknown[1] = 99;
+        byte[] truncated = new byte[10];
+        truncated[0] = ServicePayload.MAGIC;
+        truncated[1] = ServicePayload.FORMAT;
+        truncated[7] = (byte) 200;  // Host length past the end
+        byte[] badTags = ServicePayload.builder("testhost", 1234).tag("grpc").encode();
+        badTags[badTags.length - 5] = 9;  // Tag length past the end
+
+        ServicePayload payload = new ServicePayload();
+        for (byte[] data : new byte[][]{unknown, truncated, badTags}) {
+            payload.wrap(data);
+            assertTrue(payload.isUnreadable());
+            assertEquals(ServicePayload.Health.UNHEALTHY, payload.health());
+            assertEquals(0, payload.weight());
+            assertEquals("", payload.address());
+            assertEquals(0, payload.tagCount());
+            assertFalse(payload.hasTag("grpc"));
+            assertEquals("", ServicePayload.address(data));
+        }
+        assertFalse(payload.wrap(ServicePayload.builder("testhost", 1234).encode()).isUnreadable());
+    }
+}
@@ -3,13 +3,33 @@ import org.apache.curator.test.TestingServer;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.Matchers.containsStringIgnoringCase;
 import static org.junit.jupiter.api.Assertions.*;
@@ -37,6 +57,9 @@ class ServiceRegistryTest {
         if (zooKeeper.exists(SERVICES_PARENT_ZNODE, false) != null) {
             ZKUtil.deleteRecursive(zooKeeper, SERVICES_PARENT_ZNODE);
         }
+        if (zooKeeper.exists(ServiceRegistry.INSTANCES_ZNODE, false) != null) {
+            ZKUtil.deleteRecursive(zooKeeper, ServiceRegistry.INSTANCES_ZNODE);
+        }
     }
 
     @AfterAll
@@ -288,9 +311,870 @@ class ServiceRegistryTest {
         registry.close();
     }
 
+    // A refresh reports only the services that joined and left, keeping existing entries untouched
+    @Test
+    void refreshReportsMembershipChangeTest() throws Exception {
+        helperCreateServicesParentZnode();
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        testServices.add(new AbstractMap.SimpleEntry<>("service2", "host2:1234"));
+        helperCreateServicesChildZnodes(testServices);
+
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        // Hold back the watch-triggered refresh, so the explicit one below is what sees the changes
+        registry.setRefreshDebounceMillis(60_000);
+        registry.connectToZookeeper();
+        registry.initialise();
+
+        helperDeleteZnode("service1");
+        Set<Map.Entry<String, String>> newServices = new HashSet<>();
+        newServices.add(new AbstractMap.SimpleEntry<>("service3", "host3:1234"));
+        helperCreateServicesChildZnodes(newServices);
+
+        MembershipChange change = registry.refresh().get();
+        assertEquals(Set.of("service3"), change.getAdded());
+        assertEquals(Set.of("service1"), change.getRemoved());
+        assertEquals(Map.of("service2", "host2:1234", "service3", "host3:1234"), registry.getServices());
+
+        // Nothing changed since the last refresh
+        assertTrue(registry.refresh().get().isEmpty());
+        registry.close();
+    }
+
+    @Test
+    void registerServiceUpdatesExistingZnodeTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+
+        registry.register("testService", "testhost:1234");
+        registry.register("testService", "testhost:5678");
+
+        byte[] data = zooKeeper.getData(getFullPath("testService"), false, null);
+        assertArrayEquals("testhost:5678".getBytes(), data, "Service address wasn't updated");
+        assertEquals("testhost:5678", registry.getServices().get("testService"));
+        registry.close();
+    }
+
+    // A binary payload registered by one registry is read field by field by another, alongside a
+    // plain-text one written straight to ZooKeeper
+    @Test
+    void registerBinaryPayloadReadByOtherRegistryTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry writer = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        writer.connectToZookeeper();
+        writer.initialise();
+        writer.register("binaryService", ServicePayload.builder("testhost", 1234).weight(5).zone("eu-west-1")
+                .health(ServicePayload.Health.DRAINING).tag("canary").encode());
+        zooKeeper.create(getFullPath("plainService"), "otherhost:5678".getBytes(StandardCharsets.UTF_8),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+
+        ServiceRegistry reader = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        reader.connectToZookeeper();
+        reader.initialise();
+        RegistrySnapshot snapshot = reader.getSnapshot();
+        assertEquals("testhost:1234", snapshot.get("binaryService"));
+        assertEquals("otherhost:5678", snapshot.get("plainService"));
+
+        ServicePayload payload = new ServicePayload();
+        assertTrue(snapshot.readPayload("binaryService", payload));
+        assertTrue(payload.isBinary());
+        assertEquals(5, payload.weight());
+        assertTrue(payload.zoneEquals("eu-west-1"));
+        assertEquals(ServicePayload.Health.DRAINING, payload.health());
+        assertTrue(payload.hasTag("canary"));
+
+        assertTrue(snapshot.readPayload("plainService", payload));
+        assertFalse(payload.isBinary());
+        assertTrue(payload.hostEquals("otherhost"));
+        assertEquals(5678, payload.port());
+        assertEquals(1, payload.weight());
+        assertFalse(snapshot.readPayload("missingService", payload));
+        reader.close();
+        writer.close();
+    }
+
+    // A corrupt binary znode is left out of the address map instead of hanging the load, though
+    // its payload can still be read as unreadable
+    @Test
+    void unreadablePayloadDoesNotBlockInitialiseTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        byte[] corrupt = new byte[10];
+        corrupt[0] = ServicePayload.MAGIC;
+        corrupt[1] = ServicePayload.FORMAT;
+        corrupt[7] = (byte) 200;
+        helperCreateEphemeralZnode(getFullPath("corrupt"), corrupt);
+        helperCreateEphemeralZnode(getFullPath("service1"), "host1:1234".getBytes(StandardCharsets.UTF_8));
+
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        assertTimeoutPreemptively(Duration.ofSeconds(5), registry::initialise);
+        assertEquals(Map.of("service1", "host1:1234"), registry.getServices());
+        assertNull(registry.getSnapshot().get("corrupt"));
+        ServicePayload payload = new ServicePayload();
+        assertTrue(registry.getSnapshot().readPayload("corrupt", payload));
+        assertTrue(payload.isUnreadable());
+        registry.close();
+    }
+
+    @Test
+    void registerAsyncCreatesThenUpdatesTest() throws Exception {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+
+        RegistrationResult created = registry.registerAsync("testService", "testhost:1234").get();
+        assertTrue(created.isCreated());
+        assertEquals("testhost:1234", registry.getServices().get("testService"));
+
+        RegistrationResult updated = registry.registerAsync("testService", "testhost:5678").get();
+        assertFalse(updated.isCreated());
+        assertEquals(1, updated.getVersion());
+        assertEquals("testhost:5678", registry.getServices().get("testService"));
+
+        Stat stat = zooKeeper.exists(getFullPath("testService"), false);
+        assertNotEquals(0, stat.getEphemeralOwner(), "registered znode is of the wrong type");
+        assertArrayEquals("testhost:5678".getBytes(), zooKeeper.getData(getFullPath("testService"), false, null));
+        registry.close();
+    }
+
+    // Registers a batch in one transaction and compares it with registering one at a time
+    @Test
+    void registerAllBatchTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        int serviceCount = 50;
+
+        long loopStart = System.nanoTime();
+        for (int i = 0; i < serviceCount; i++) {
+            registry.register("looped" + i, "host" + i + ":1234");
+        }
+        long loopMicros = (System.nanoTime() - loopStart) / 1000;
+
+        Map<String, String> services = new HashMap<>();
+        for (int i = 0; i < serviceCount; i++) {
+            services.put("batched" + i, "host" + i + ":1234");
+        }
+        long batchStart = System.nanoTime();
+        int roundTrips = registry.registerAll(services);
+        long batchMicros = (System.nanoTime() - batchStart) / 1000;
+        System.out.printf("Registered %d services: register() loop %d round trips in %d us, registerAll %d round trips in %d us%n",
+                serviceCount, 2 * serviceCount, loopMicros, roundTrips, batchMicros);
+
+        assertEquals(1, roundTrips);
+        for (int i = 0; i < serviceCount; i++) {
+            byte[] data = zooKeeper.getData(getFullPath("batched" + i), false, null);
+            assertArrayEquals(("host" + i + ":1234").getBytes(), data);
+        }
+        assertTrue(registry.getServices().entrySet().containsAll(services.entrySet()));
+        registry.close();
+    }
+
+    // Services that already exist are updated rather than failing the batch
+    @Test
+    void registerAllUpdatesExistingServicesTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        registry.register("service1", "host1:1234");
+
+        int roundTrips = registry.registerAll(Map.of("service1", "host1:5678", "service2", "host2:5678"));
+
+        assertEquals(3, roundTrips);
+        assertArrayEquals("host1:5678".getBytes(), zooKeeper.getData(getFullPath("service1"), false, null));
+        assertArrayEquals("host2:5678".getBytes(), zooKeeper.getData(getFullPath("service2"), false, null));
+        assertNotEquals(0, zooKeeper.exists(getFullPath("service2"), false).getEphemeralOwner());
+        registry.close();
+    }
+
+    // A missing /services can't be fixed by retrying, so the batch fails rather than spinning
+    @Test
+    void registerAllWithoutParentFailsTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        assertNull(zooKeeper.exists(SERVICES_PARENT_ZNODE, false));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> assertThrows(KeeperException.NoNodeException.class, () -> registry.registerAll(Map.of("service1", "host1:1234"))));
+        assertTrue(registry.getServices().isEmpty());
+        registry.close();
+    }
+
+    // With a persistent recursive watch every address change is seen, not just the first one
+    @Test
+    void persistentWatchSeesRepeatedChangesTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        helperCreateServicesChildZnodes(testServices);
+
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.PERSISTENT_RECURSIVE);
+        registry.connectToZookeeper();
+        registry.initialise();
+        assertEquals("host1:1234", registry.getServices().get("service1"));
+
+        helperUpdateZnode("service1", "host2:1234");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals("host2:1234", registry.getServices().get("service1"));
+
+        helperUpdateZnode("service1", "host3:1234");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals("host3:1234", registry.getServices().get("service1"));
+        registry.close();
+    }
+
+    // One-shot data watches are set again on each re-read, so later changes are seen too
+    @Test
+    void oneShotWatchSeesRepeatedChangesTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        helperCreateServicesChildZnodes(testServices);
+
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        assertEquals("host1:1234", registry.getServices().get("service1"));
+
+        helperUpdateZnode("service1", "host2:1234");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals("host2:1234", registry.getServices().get("service1"));
+
+        helperUpdateZnode("service1", "host3:1234");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals("host3:1234", registry.getServices().get("service1"));
+        registry.close();
+    }
+
+    // With a persistent recursive watch services joining and leaving are tracked
+    @Test
+    void persistentWatchTracksMembershipTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.PERSISTENT_RECURSIVE);
+        registry.connectToZookeeper();
+        registry.initialise();
+
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        testServices.add(new AbstractMap.SimpleEntry<>("service2", "host2:1234"));
+        helperCreateServicesChildZnodes(testServices);
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(2, registry.getServices().size());
+        assertTrue(registry.getServices().entrySet().containsAll(testServices));
+
+        helperDeleteZnode("service1");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(Map.of("service2", "host2:1234"), registry.getServices());
+        registry.close();
+    }
+
+    // Compares the time from a setData to the new address being visible for both watch modes
+    @Test
+    void watchModeLatencyBenchmarkTest() throws IOException, InterruptedException, KeeperException {
+        int serviceCount = 200;
+        helperCreateServicesParentZnode();
+        helperCreateManyServiceZnodes(serviceCount);
+
+        for (ServiceRegistry.WatchMode mode : ServiceRegistry.WatchMode.values()) {
+            ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, mode);
+            registry.connectToZookeeper();
+            registry.initialise();
+
+            // Each service is changed twice, so one-shot watches must be set again after firing
+            long totalNanos = 0;
+            for (int i = 0; i < 2 * serviceCount; i++) {
+                String serviceName = "service" + (i % serviceCount);
+                String newAddress = "moved-" + mode + ":" + i;
+                long start = System.nanoTime();
+                helperUpdateZnode(serviceName, newAddress);
+                while (!newAddress.equals(registry.getServices().get(serviceName))) {
+                    assertTrue(System.nanoTime() - start < 5_000_000_000L, mode + " never saw update " + i + " to " + serviceName);
+                    Thread.onSpinWait();
+                }
+                totalNanos += System.nanoTime() - start;
+            }
+            System.out.printf("%s: mean event-to-visible latency %d us over %d updates%n",
+                    mode, totalNanos / (2 * serviceCount) / 1000, 2 * serviceCount);
+            registry.close();
+        }
+    }
+
+    // A burst of membership changes is coalesced into a few refreshes that still end up consistent
+    @Test
+    void burstOfChangesCoalescedTest() throws IOException, InterruptedException, KeeperException {
+        int serviceCount = 500;
+        JmxRegistryMetrics metrics = new JmxRegistryMetrics();
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT, metrics);
+        registry.setRefreshDebounceMillis(50);
+        registry.connectToZookeeper();
+        registry.initialise();
+        long reloadsBefore = metrics.getIncrementalReloads();
+
+        helperCreateManyServiceZnodes(serviceCount);
+        Thread.sleep(SLEEP_INTERVAL);
+
+        long reloads = metrics.getIncrementalReloads() - reloadsBefore;
+        System.out.printf("%d membership changes caused %d refreshes%n", serviceCount, reloads);
+        assertEquals(serviceCount, registry.getServices().size());
+        assertEquals("host" + (serviceCount - 1) + ":1234", registry.getServices().get("service" + (serviceCount - 1)));
+        assertTrue(reloads <= 10, "expected changes to be coalesced but saw " + reloads + " refreshes");
+        registry.close();
+    }
+
+    // A registry started from the snapshot file serves it before connecting, then re-reads only what changed
+    @Test
+    void snapshotFileServedThenReconciledTest(@TempDir Path tempDir) throws Exception {
+        Path snapshotPath = tempDir.resolve("registry.snapshot");
+        helperCreateServicesParentZnode();
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        testServices.add(new AbstractMap.SimpleEntry<>("service2", "host2:1234"));
+        testServices.add(new AbstractMap.SimpleEntry<>("service3", "host3:1234"));
+        helperCreateServicesChildZnodes(testServices);
+
+        // First run writes the snapshot file
+        ServiceRegistry first = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        assertFalse(first.setSnapshotFile(snapshotPath));
+        first.connectToZookeeper();
+        first.initialise();
+        first.close();
+
+        // While nothing is running, one service changes, one leaves and one joins
+        helperUpdateZnode("service1", "host1:5678");
+        helperDeleteZnode("service2");
+        Set<Map.Entry<String, String>> newServices = new HashSet<>();
+        newServices.add(new AbstractMap.SimpleEntry<>("service4", "host4:1234"));
+        helperCreateServicesChildZnodes(newServices);
+
+        // Second run serves the cached copy straight away
+        JmxRegistryMetrics metrics = new JmxRegistryMetrics();
+        ServiceRegistry second = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT, metrics);
+        assertTrue(second.setSnapshotFile(snapshotPath));
+        assertTrue(second.getSnapshot().isStale());
+        assertEquals(3, second.getServices().size());
+        assertEquals("host1:1234", second.getServices().get("service1"));
+
+        // Reconciling only reads the changed and new services
+        assertTrue(second.connectToZookeeper(SESSION_TIMEOUT, TimeUnit.MILLISECONDS));
+        second.initialiseInBackground().get();
+        assertFalse(second.getSnapshot().isStale());
+        assertEquals(Map.of("service1", "host1:5678", "service3", "host3:1234", "service4", "host4:1234"), second.getServices());
+        assertEquals(2, metrics.getZooKeeperCalls().get("GET_DATA").getCount());
+
+        // The unchanged service still has a data watch
+        helperUpdateZnode("service3", "host3:5678");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals("host3:5678", second.getServices().get("service3"));
+        second.close();
+    }
+
+    // A bounded connect gives up when there is no server, leaving the snapshot file to be served
+    @Test
+    void boundedConnectTimesOutTest(@TempDir Path tempDir) throws Exception {
+        ServiceRegistry registry = new ServiceRegistry("localhost:1", SESSION_TIMEOUT);
+        registry.setSnapshotFile(tempDir.resolve("registry.snapshot"));
+        assertFalse(registry.connectToZookeeper(200, TimeUnit.MILLISECONDS));
+        assertTrue(registry.getServices().isEmpty());
+        registry.close();
+    }
+
+    // Background initialisation needs a handle, then waits for it to connect without holding up
+    // the refresh thread, and gives up if the registry is closed first. Connecting again while the
+    // handle is still connecting waits on the same session rather than opening another.
+    @Test
+    void initialiseInBackgroundWaitsForConnectionTest() throws Exception {
+        helperCreateServicesParentZnode();
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        helperCreateServicesChildZnodes(testServices);
+
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        assertThrows(IllegalStateException.class, registry::initialiseInBackground);
+
+        registry.connectToZookeeper(0, TimeUnit.MILLISECONDS);  // Returns before connecting
+        ZooKeeper handle = registry.getZooKeeper();
+        CompletableFuture<Void> initialised = registry.initialiseInBackground();
+        assertTrue(registry.connectToZookeeper(SESSION_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertSame(handle, registry.getZooKeeper());
+        initialised.get(SESSION_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals("host1:1234", registry.getServices().get("service1"));
+        registry.close();
+        assertFalse(handle.getState().isAlive());
+
+        ServiceRegistry unreachable = new ServiceRegistry("localhost:1", SESSION_TIMEOUT);
+        assertFalse(unreachable.connectToZookeeper(200, TimeUnit.MILLISECONDS));
+        CompletableFuture<Void> never = unreachable.initialiseInBackground();
+        unreachable.close();
+        assertThrows(ExecutionException.class, () -> never.get(SESSION_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    // Metrics are recorded for ZooKeeper calls, refreshes and registry size, and are readable over JMX
+    @Test
+    void metricsExposedOverJmxTest() throws Exception {
+        JmxRegistryMetrics metrics = new JmxRegistryMetrics();
+        ObjectName name = metrics.register("metricsExposedOverJmxTest");
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT, metrics);
+        registry.connectToZookeeper();
+        registry.initialise();
+
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        helperCreateServicesChildZnodes(testServices);
+        Thread.sleep(SLEEP_INTERVAL);
+        registry.register("service2", "host2:1234");
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2, server.getAttribute(name, "RegistrySize"));
+        assertEquals(1L, server.getAttribute(name, "FullReloads"));
+        assertTrue((Long) server.getAttribute(name, "IncrementalReloads") >= 1);
+        CompositeData eventToPublish = (CompositeData) server.getAttribute(name, "EventToPublish");
+        assertTrue((Long) eventToPublish.get("count") >= 1);
+
+        Map<String, LatencySummary> calls = metrics.getZooKeeperCalls();
+        assertTrue(calls.get("GET_CHILDREN").getCount() >= 2);
+        assertTrue(calls.get("GET_DATA").getCount() >= 1);
+        assertEquals(2, calls.get("CREATE").getCount());  // /services and service2
+        assertEquals(0, calls.get("CREATE").getErrors());
+
+        registry.close();
+        metrics.unregister();
+    }
+
+    // A snapshot handed out to a reader never changes after later updates
+    @Test
+    void snapshotUnchangedByLaterUpdatesTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+
+        registry.register("service1", "host1:1234");
+        RegistrySnapshot before = registry.getSnapshot();
+        Map<String, String> servicesBefore = registry.getServices();
+
+        registry.register("service2", "host2:1234");
+        Thread.sleep(SLEEP_INTERVAL);
+        RegistrySnapshot after = registry.getSnapshot();
+
+        assertEquals(1, before.size());
+        assertEquals(1, servicesBefore.size());
+        assertEquals(2, after.size());
+        assertTrue(after.getVersion() > before.getVersion());
+        assertThrows(UnsupportedOperationException.class, () -> servicesBefore.put("service3", "host3:1234"));
+        registry.close();
+    }
+
+    // Loads a large /services tree and reports the time taken against a serial getData per child
+    @Test
+    void initialiseLargeRegistryLoadTimeTest() throws IOException, InterruptedException, KeeperException {
+        int serviceCount = 5000;
+        helperCreateServicesParentZnode();
+        helperCreateManyServiceZnodes(serviceCount);
+
+        long serialStart = System.nanoTime();
+        for (String child : zooKeeper.getChildren(SERVICES_PARENT_ZNODE, false)) {
+            zooKeeper.getData(getFullPath(child), false, null);
+        }
+        long serialMillis = (System.nanoTime() - serialStart) / 1_000_000;
+
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        long pipelinedStart = System.nanoTime();
+        registry.initialise();
+        long pipelinedMillis = (System.nanoTime() - pipelinedStart) / 1_000_000;
+        System.out.printf("Loaded %d services: serial %d ms, pipelined %d ms%n", serviceCount, serialMillis, pipelinedMillis);
+
+        Map<String, String> registeredServices = registry.getServices();
+        assertEquals(serviceCount, registeredServices.size());
+        assertEquals("host0:1234", registeredServices.get("service0"));
+        assertEquals("host" + (serviceCount - 1) + ":1234", registeredServices.get("service" + (serviceCount - 1)));
+        registry.close();
+    }
+
+    // A subscription only watches and holds the services it names, which can change at runtime
+    @Test
+    void subscribeHoldsOnlySubscribedServicesTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        Set<Map.Entry<String, String>> testServices = new HashSet<>();
+        testServices.add(new AbstractMap.SimpleEntry<>("service1", "host1:1234"));
+        testServices.add(new AbstractMap.SimpleEntry<>("service2", "host2:1234"));
+        helperCreateServicesChildZnodes(testServices);
+
+        JmxRegistryMetrics metrics = new JmxRegistryMetrics();
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT, metrics);
+        registry.connectToZookeeper();
+        BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+        Subscription subscription = registry.subscribe(Set.of("service1", "service3"),
+                (serviceName, serviceAddress) -> changes.add(serviceName + "=" + serviceAddress));
+        assertEquals("service1=host1:1234", changes.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+        assertEquals(Map.of("service1", "host1:1234"), registry.getServices());
+        assertEquals(0, metrics.getZooKeeperCalls().get("GET_CHILDREN").getCount(), "subscribing shouldn't list /services");
+
+        // Changes to subscribed services arrive, including one that didn't exist yet
+        helperCreateEphemeralZnode(getFullPath("service3"), "host3:1234".getBytes(StandardCharsets.UTF_8));
+        assertEquals("service3=host3:1234", changes.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+        helperUpdateZnode("service1", "host1:5678");
+        assertEquals("service1=host1:5678", changes.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+        helperDeleteZnode("service3");
+        assertEquals("service3=null", changes.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+
+        // Other services are ignored
+        helperUpdateZnode("service2", "host2:5678");
+        assertNull(changes.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+
+        // Subscriptions can be added and removed while running
+        subscription.add(Set.of("service2"));
+        assertEquals("service2=host2:5678", changes.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+        subscription.remove(Set.of("service1"));
+        assertEquals(Map.of("service2", "host2:5678"), registry.getServices());
+        helperUpdateZnode("service1", "host1:9999");
+        assertNull(changes.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+        assertEquals(Set.of("service2", "service3"), subscription.getServiceNames());
+
+        subscription.close();
+        assertTrue(registry.getServices().isEmpty());
+        registry.close();
+    }
+
+    // Listeners are pushed typed events carrying the old and new address and znode version
+    @Test
+    void listenerReceivesTypedEventsTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        BlockingQueue<RegistryEvent> events = new LinkedBlockingQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        registry.addListener(events::add, executor, RegistryListener.Delivery.EVERY_EVENT);
+
+        helperCreateEphemeralZnode(getFullPath("service1"), "host1:1234".getBytes(StandardCharsets.UTF_8));
+        RegistryEvent added = events.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        assertTrue(added instanceof RegistryEvent.ServiceAdded);
+        assertEquals("service1", added.getServiceName());
+        assertNull(added.getOldAddress());
+        assertEquals("host1:1234", added.getNewAddress());
+        assertEquals(0, added.getVersion());
+
+        helperUpdateZnode("service1", "host1:5678");
+        RegistryEvent changed = events.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        assertTrue(changed instanceof RegistryEvent.ServiceAddressChanged);
+        assertEquals("host1:1234", changed.getOldAddress());
+        assertEquals("host1:5678", changed.getNewAddress());
+        assertEquals(1, changed.getVersion());
+
+        helperDeleteZnode("service1");
+        RegistryEvent removed = events.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        assertTrue(removed instanceof RegistryEvent.ServiceRemoved);
+        assertEquals("host1:5678", removed.getOldAddress());
+        assertNull(removed.getNewAddress());
+        assertNull(events.poll(SLEEP_INTERVAL, TimeUnit.MILLISECONDS));
+
+        registry.close();
+        executor.shutdown();
+    }
+
+    // Events for one service arrive in order even on a multi-threaded executor, and a coalescing
+    // listener that falls behind only sees the latest state of each service
+    @Test
+    void listenerOrderingAndCoalescingTest() throws IOException, InterruptedException, KeeperException {
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        List<String> ordered = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        registry.addListener(event -> ordered.add(event.getNewAddress()), executor, RegistryListener.Delivery.EVERY_EVENT);
+        List<Runnable> paused = new ArrayList<>();
+        List<RegistryEvent> coalesced = new ArrayList<>();
+        registry.addListener(coalesced::add, paused::add, RegistryListener.Delivery.COALESCE);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            registry.register("service1", "host1:" + (1000 + i));
+            expected.add("host1:" + (1000 + i));
+        }
+        registry.register("service2", "host2:1234");
+        expected.add("host2:1234");
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(expected, ordered);
+
+        paused.forEach(Runnable::run);
+        assertEquals(2, coalesced.size());
+        assertTrue(coalesced.get(0) instanceof RegistryEvent.ServiceAdded);
+        assertEquals("host1:1099", coalesced.get(0).getNewAddress());
+        assertEquals(99, coalesced.get(0).getVersion());
+        assertEquals("host2:1234", coalesced.get(1).getNewAddress());
+        registry.close();
+    }
+
+    // A full EVERY_EVENT listener never holds up the ZooKeeper event thread: changes applied from
+    // watch events still become visible, while the refresh thread stops reading new membership
+    // until the listener catches up
+    @Test
+    void fullListenerHoldsRefreshThreadNotEventThreadTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        for (ServiceRegistry.WatchMode mode : ServiceRegistry.WatchMode.values()) {
+            ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, mode);
+            registry.connectToZookeeper();
+            registry.initialise();
+            CountDownLatch release = new CountDownLatch(1);
+            List<String> received = Collections.synchronizedList(new ArrayList<>());
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            registry.addListener(event -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(event.getServiceName());
+            }, executor, RegistryListener.Delivery.EVERY_EVENT, 1);
+
+            // After the first two services one event is being delivered and one waits, filling the listener
+            for (int i = 1; i <= 4; i++) {
+                helperCreateEphemeralZnode(getFullPath("service" + i), ("host" + i + ":1234").getBytes(StandardCharsets.UTF_8));
+                Thread.sleep(SLEEP_INTERVAL);
+            }
+            if (mode == ServiceRegistry.WatchMode.PERSISTENT_RECURSIVE) {
+                assertEquals("host4:1234", registry.getServices().get("service4"), mode.toString());
+            } else {
+                assertNull(registry.getServices().get("service3"), mode.toString());
+            }
+
+            release.countDown();
+            Thread.sleep(SLEEP_INTERVAL);
+            assertEquals("host4:1234", registry.getServices().get("service4"), mode.toString());
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(List.of("service1", "service2"), received.subList(0, 2), mode.toString());
+            assertEquals(Set.of("service3", "service4"), new HashSet<>(received.subList(2, 4)), mode.toString());
+            registry.close();
+            for (int i = 1; i <= 4; i++) {
+                helperDeleteZnode("service" + i);
+            }
+        }
+    }
+
+    // Past capacity an EVERY_EVENT listener's events are merged per service, so its queue stays
+    // bounded even when the publisher can't be held back
+    @Test
+    void fullListenerMergesEventsPastCapacityTest() {
+        List<Runnable> paused = new ArrayList<>();
+        List<RegistryEvent> received = new ArrayList<>();
+        ListenerDispatcher dispatcher = new ListenerDispatcher(received::add, paused::add, RegistryListener.Delivery.EVERY_EVENT, 2);
+        dispatcher.dispatch(RegistryEvent.of("service1", null, "host1:1000", 0));
+        for (int i = 1; i < 10; i++) {
+            dispatcher.dispatch(RegistryEvent.of("service1", "host1:" + (999 + i), "host1:" + (1000 + i), i));
+        }
+        dispatcher.dispatch(RegistryEvent.of("service2", null, "host2:1000", 0));
+
+        paused.forEach(Runnable::run);
+        assertEquals(3, received.size());
+        assertTrue(received.get(0) instanceof RegistryEvent.ServiceAdded);
+        assertEquals("host1:1000", received.get(0).getNewAddress());
+        assertTrue(received.get(1) instanceof RegistryEvent.ServiceAddressChanged);
+        assertEquals("host1:1000", received.get(1).getOldAddress());
+        assertEquals("host1:1009", received.get(1).getNewAddress());
+        assertEquals("host2:1000", received.get(2).getNewAddress());
+    }
+
+    @Test
+    void sessionExpiryRecoversRegistrationsAndWatchesTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        JmxRegistryMetrics metrics = new JmxRegistryMetrics();
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT, metrics);
+        registry.connectToZookeeper();
+        registry.initialise();
+        registry.register("service1", "host1:1234");
+        helperCreateEphemeralZnode(getFullPath("service2"), "host2:1234".getBytes(StandardCharsets.UTF_8));
+        String instancePath = registry.registerInstance("service5", "host5:1234");
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.ROUND_ROBIN);
+        resolver.track("service5");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(Map.of("service1", "host1:1234", "service2", "host2:1234"), registry.getServices());
+
+        long sessionId = registry.getZooKeeper().getSessionId();
+        helperExpireSession(registry.getZooKeeper());
+
+        // The registration comes back under a new session
+        for (int i = 0; i < 50 && metrics.getSessionRecovery().getCount() == 0; i++) {
+            Thread.sleep(SLEEP_INTERVAL / 5);
+        }
+        Stat stat = zooKeeper.exists(getFullPath("service1"), false);
+        assertNotNull(stat);
+        assertNotEquals(sessionId, stat.getEphemeralOwner());
+        assertEquals(registry.getZooKeeper().getSessionId(), stat.getEphemeralOwner());
+        assertEquals(Map.of("service1", "host1:1234", "service2", "host2:1234"), registry.getServices());
+        assertEquals(1, metrics.getSessionRecovery().getCount());
+
+        // Watches are back on the new session
+        helperCreateEphemeralZnode(getFullPath("service3"), "host3:1234".getBytes(StandardCharsets.UTF_8));
+        helperUpdateZnode("service2", "host2:5678");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(Map.of("service1", "host1:1234", "service2", "host2:5678", "service3", "host3:1234"), registry.getServices());
+
+        // The instance came back under a new path, and the resolver is watching the new session
+        assertNull(zooKeeper.exists(instancePath, false));
+        assertEquals(List.of("host5:1234"), resolver.getInstances("service5"));
+        zooKeeper.create(ServiceRegistry.instancesPath("service5") + "/instance-", "host6:1234".getBytes(StandardCharsets.UTF_8),
+                ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(Set.of("host5:1234", "host6:1234"), new HashSet<>(resolver.getInstances("service5")));
+        registry.close();
+    }
+
+    // If the new session expires while it is still being set up, recovery goes round again
+    @Test
+    void expiryDuringRecoveryRecoversAgainTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        JmxRegistryMetrics metrics = new JmxRegistryMetrics();
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT, metrics);
+        registry.connectToZookeeper();
+        registry.initialise();
+        registry.register("service1", "host1:1234");
+        AtomicInteger recoveries = new AtomicInteger();
+        registry.addRecoveryHook(() -> {
+            if (recoveries.incrementAndGet() == 1) {
+                // Expire the replacement session, and let its expiry arrive before failing
+                ZooKeeper replacement = registry.getZooKeeper();
+                try {
+                    helperExpireSession(replacement);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                while (replacement.getState().isAlive()) {
+                    Thread.sleep(SLEEP_INTERVAL / 10);
+                }
+                Thread.sleep(SLEEP_INTERVAL);
+                throw new KeeperException.SessionExpiredException();
+            }
+        });
+
+        helperExpireSession(registry.getZooKeeper());
+        for (int i = 0; i < 100 && metrics.getSessionRecovery().getCount() == 0; i++) {
+            Thread.sleep(SLEEP_INTERVAL / 5);
+        }
+        assertEquals(1, metrics.getSessionRecovery().getCount());
+        assertEquals(2, recoveries.get());
+        assertTrue(registry.getZooKeeper().getState().isConnected());
+        Stat stat = zooKeeper.exists(getFullPath("service1"), false);
+        assertNotNull(stat);
+        assertEquals(registry.getZooKeeper().getSessionId(), stat.getEphemeralOwner());
+        registry.close();
+    }
+
+    @Test
+    void unregisterAllRemovesServicesBeforeSessionEndsTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        ServiceRegistry writer = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        writer.connectToZookeeper();
+        writer.registerAll(Map.of("service1", "host1:1234", "service2", "host2:1234"));
+        writer.register("service3", "host3:1234");
+        String instancePath = writer.registerInstance("service4", "host4:1234");
+
+        ServiceRegistry reader = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        reader.connectToZookeeper();
+        reader.initialise();
+        // The instance set lives under /instances, so it isn't mirrored as a service
+        assertEquals(Set.of("service1", "service2", "service3"), reader.getServices().keySet());
+
+        writer.unregister("service3");
+        assertNull(zooKeeper.exists(getFullPath("service3"), false));
+        assertFalse(writer.getServices().containsKey("service3"));
+
+        // Everything else goes at once, while the writer's session is still open
+        assertEquals(3, writer.unregisterAll());
+        assertNull(zooKeeper.exists(instancePath, false));
+        assertTrue(writer.getServices().isEmpty());
+        Thread.sleep(SLEEP_INTERVAL);
+        assertFalse(reader.getServices().containsKey("service1"));
+        assertFalse(reader.getServices().containsKey("service2"));
+        assertEquals(0, writer.unregisterAll());
+
+        writer.close();
+        reader.close();
+    }
+
+    // A sharded registry registers into buckets and still sees services left in the flat layout
+    @Test
+    void shardedLayoutReadsFlatServicesTest() throws IOException, InterruptedException, KeeperException {
+        helperCreateServicesParentZnode();
+        helperCreateEphemeralZnode(getFullPath("legacyService"), "legacyhost:1234".getBytes(StandardCharsets.UTF_8));
+        // Named like a bucket, but not one
+        helperCreateEphemeralZnode(getFullPath("shard-foo"), "foohost:1234".getBytes(StandardCharsets.UTF_8));
+
+        ServiceRegistry registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT,
+                RegistryMetrics.NOOP, ServiceRegistry.Layout.SHARDED);
+        registry.connectToZookeeper();
+        registry.initialise();
+        assertEquals(ServiceRegistry.SHARD_COUNT + 2, zooKeeper.getChildren(SERVICES_PARENT_ZNODE, false).size());
+        assertEquals(Map.of("legacyService", "legacyhost:1234", "shard-foo", "foohost:1234"), registry.getServices());
+
+        registry.register("newService", "newhost:1234");
+        String bucket = ServiceRegistry.bucketOf("newService");
+        assertNotNull(zooKeeper.exists(getFullPath(bucket + "/newService"), false), "service wasn't registered in its bucket");
+        assertNull(zooKeeper.exists(getFullPath("newService"), false));
+
+        // Changes in either layout are picked up
+        helperCreateEphemeralZnode(getFullPath(bucket + "/otherService"), "otherhost:1234".getBytes(StandardCharsets.UTF_8));
+        helperDeleteZnode("legacyService");
+        helperDeleteZnode("shard-foo");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(Map.of("newService", "newhost:1234", "otherService", "otherhost:1234"), registry.getServices());
+        registry.close();
+    }
+
+    // With 50k services, a membership change reloads just the bucket it happened in
+    @Test
+    void shardedLayoutReloadsOnlyChangedShardTest() throws IOException, InterruptedException, KeeperException {
+        int serviceCount = 50_000;
+        ServiceRegistry writer = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT,
+                RegistryMetrics.NOOP, ServiceRegistry.Layout.SHARDED);
+        writer.connectToZookeeper();
+        writer.initialise();
+        Map<String, String> services = new HashMap<>();
+        for (int i = 0; i < serviceCount; i++) {
+            services.put("service" + i, "host" + i + ":1234");
+        }
+        writer.registerAll(services);
+
+        JmxRegistryMetrics metrics = new JmxRegistryMetrics();
+        ServiceRegistry reader = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, ServiceRegistry.WatchMode.ONE_SHOT,
+                metrics, ServiceRegistry.Layout.SHARDED);
+        reader.connectToZookeeper();
+        long start = System.nanoTime();
+        reader.initialise();
+        System.out.printf("Loaded %d services from %d buckets in %d ms%n", serviceCount, ServiceRegistry.SHARD_COUNT,
+                (System.nanoTime() - start) / 1_000_000);
+        assertEquals(serviceCount, reader.getServices().size());
+        assertEquals("host49999:1234", reader.getServices().get("service49999"));
+
+        long childReads = metrics.getZooKeeperCalls().get("GET_CHILDREN").getCount();
+        long dataReads = metrics.getZooKeeperCalls().get("GET_DATA").getCount();
+        String bucket = ServiceRegistry.bucketOf("newService");
+        helperCreateEphemeralZnode(getFullPath(bucket + "/newService"), "newhost:1234".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 50 && reader.getServices().size() == serviceCount; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("newhost:1234", reader.getServices().get("newService"));
+        assertEquals(childReads + 1, metrics.getZooKeeperCalls().get("GET_CHILDREN").getCount());
+        assertEquals(dataReads + 1, metrics.getZooKeeperCalls().get("GET_DATA").getCount());
+
+        reader.close();
+        writer.close();
+    }
+
     private String getFullPath(String znodeName) {
         return SERVICES_PARENT_ZNODE + "/" + znodeName;
     }
+    // Expire a session by opening and closing another handle on it
+    private void helperExpireSession(ZooKeeper handle) throws IOException, InterruptedException {
+        CountDownLatch connected = new CountDownLatch(1);
+        ZooKeeper duplicate = new ZooKeeper(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, event -> {
+            if (event.getState() == Watcher.Event.KeeperState.SyncConnected) {
+                connected.countDown();
+            }
+        }, handle.getSessionId(), handle.getSessionPasswd());
+        assertTrue(connected.await(SESSION_TIMEOUT, TimeUnit.MILLISECONDS));
+        duplicate.close();
+    }
+
     void helperCreateServicesParentZnode() throws KeeperException, InterruptedException {
         helperCreateZnode(SERVICES_PARENT_ZNODE, new byte[]{}, CreateMode.PERSISTENT);
     }
@@ -305,6 +1189,15 @@ class ServiceRegistryTest {
         }
     }
 
+    void helperCreateManyServiceZnodes(int count) throws InterruptedException {
+        CountDownLatch created = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            zooKeeper.create(getFullPath("service" + i), ("host" + i + ":1234").getBytes(StandardCharsets.UTF_8),
+                    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL, (rc, path, ctx, name) -> created.countDown(), null);
+        }
+        created.await();
+    }
+
     void helperCreateEphemeralZnode(String path, byte[] data) throws InterruptedException, KeeperException {
         helperCreateZnode(path, data, CreateMode.EPHEMERAL);
     }
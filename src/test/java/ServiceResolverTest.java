@@ -0,0 +1,221 @@
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.*;
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServiceResolverTest {
+
+    public static final int SLEEP_INTERVAL = 500;
+    private static TestingServer zkServer;
+    private static ZooKeeper zooKeeper;
+    private static final String ZOOKEEPER_ADDRESS = "localhost:2183";
+    private static final int SESSION_TIMEOUT = 3000;
+    private static final String SERVICES_PARENT_ZNODE = "/services";
+    private static final String INSTANCES_PARENT_ZNODE = "/instances";
+    private static final List<String> INSTANCES = List.of("host1:1234", "host2:1234", "host3:1234");
+
+    private ServiceRegistry registry;
+
+    @BeforeAll
+    public static void setUp() throws Exception {
+        zkServer = new TestingServer(2183, true);
+        zooKeeper = new ZooKeeper(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT, watchedEvent -> {
+        });
+    }
+
+    @BeforeEach
+    void createRegistry() throws IOException, InterruptedException, KeeperException {
+        registry = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        registry.connectToZookeeper();
+        registry.initialise();
+        for (String instance : INSTANCES) {
+            registry.registerInstance("service1", instance);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws KeeperException, InterruptedException {
+        registry.close();
+        if (zooKeeper.exists(SERVICES_PARENT_ZNODE, false) != null) {
+            ZKUtil.deleteRecursive(zooKeeper, SERVICES_PARENT_ZNODE);
+        }
+        if (zooKeeper.exists(INSTANCES_PARENT_ZNODE, false) != null) {
+            ZKUtil.deleteRecursive(zooKeeper, INSTANCES_PARENT_ZNODE);
+        }
+    }
+
+    @AfterAll
+    public static void shutDown() throws Exception {
+        zkServer.stop();
+    }
+
+    @Test
+    void registerInstanceKeepsEveryInstanceTest() throws KeeperException, InterruptedException {
+        List<String> children = zooKeeper.getChildren(INSTANCES_PARENT_ZNODE + "/service1", false);
+        assertEquals(3, children.size());
+
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.ROUND_ROBIN);
+        resolver.track("service1");
+        assertEquals(new HashSet<>(INSTANCES), new HashSet<>(resolver.getInstances("service1")));
+    }
+
+    @Test
+    void roundRobinCyclesThroughInstancesTest() throws KeeperException, InterruptedException {
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.ROUND_ROBIN);
+        resolver.track("service1");
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            counts.merge(resolver.pick("service1"), 1, Integer::sum);
+        }
+        assertEquals(Map.of("host1:1234", 100, "host2:1234", 100, "host3:1234", 100), counts);
+    }
+
+    @Test
+    void randomPicksEveryInstanceTest() throws KeeperException, InterruptedException {
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.RANDOM);
+        resolver.track("service1");
+
+        Set<String> picked = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            picked.add(resolver.pick("service1"));
+        }
+        assertEquals(new HashSet<>(INSTANCES), picked);
+    }
+
+    @Test
+    void powerOfTwoChoicesAvoidsBusyInstanceTest() throws KeeperException, InterruptedException {
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.POWER_OF_TWO_CHOICES);
+        resolver.track("service1");
+
+        // Never releasing host1 makes it look busy, so it should stop being chosen
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            String address = resolver.pick("service1");
+            counts.merge(address, 1, Integer::sum);
+            if (!address.equals("host1:1234")) {
+                resolver.release("service1", address);
+            }
+        }
+        assertTrue(counts.getOrDefault("host1:1234", 0) < 10, "busy instance kept being picked: " + counts);
+    }
+
+    @Test
+    void consistentHashIsStableTest() throws KeeperException, InterruptedException {
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.CONSISTENT_HASH);
+        resolver.track("service1");
+
+        Set<String> picked = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String address = resolver.pick("service1", "user-" + i);
+            assertEquals(address, resolver.pick("service1", "user-" + i));
+            picked.add(address);
+        }
+        assertEquals(new HashSet<>(INSTANCES), picked);
+    }
+
+    @Test
+    void instanceChangesAreTrackedTest() throws KeeperException, InterruptedException, IOException {
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.ROUND_ROBIN);
+        resolver.track("service1");
+
+        ServiceRegistry other = new ServiceRegistry(ZOOKEEPER_ADDRESS, SESSION_TIMEOUT);
+        other.connectToZookeeper();
+        other.registerInstance("service1", "host4:1234");
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(4, resolver.getInstances("service1").size());
+
+        // Closing the session removes its ephemeral instance
+        other.close();
+        Thread.sleep(SLEEP_INTERVAL);
+        assertEquals(new HashSet<>(INSTANCES), new HashSet<>(resolver.getInstances("service1")));
+    }
+
+    @Test
+    void weightedFollowsReportedLoadTest() throws KeeperException, InterruptedException {
+        ServicePayload.Builder payload = ServicePayload.builder("host4", 1234);
+        String instancePath = registry.registerInstance("service2", payload.encode());
+        registry.registerInstance("service2", ServicePayload.builder("host5", 1234).encode());
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.WEIGHTED);
+        resolver.track("service2");
+
+        Map<String, Integer> counts = pickCounts(resolver, "service2");
+        assertTrue(counts.getOrDefault("host4:1234", 0) > 400, "equal weights should be picked about equally: " + counts);
+
+        // host4 reports heavy load, then stops taking traffic
+        try (HealthReporter reporter = new HealthReporter(registry, instancePath, payload, TimeUnit.HOURS.toMillis(1), HealthReporter.DEFAULT_THRESHOLD)) {
+            reporter.record(20, 400_000, 90);
+            reporter.tick();
+            Thread.sleep(SLEEP_INTERVAL);
+            counts = pickCounts(resolver, "service2");
+            assertTrue(counts.getOrDefault("host4:1234", 0) < 30, "loaded instance kept its share: " + counts);
+
+            reporter.setHealth(ServicePayload.Health.DRAINING);
+            reporter.tick();
+            Thread.sleep(SLEEP_INTERVAL);
+            assertEquals(Map.of("host5:1234", 1000), pickCounts(resolver, "service2"));
+        }
+    }
+
+    @Test
+    void healthReporterSkipsSmallChangesTest() throws KeeperException, InterruptedException {
+        ServicePayload.Builder payload = ServicePayload.builder("host4", 1234);
+        String instancePath = registry.registerInstance("service2", payload.encode());
+        try (HealthReporter reporter = new HealthReporter(registry, instancePath, payload, TimeUnit.HOURS.toMillis(1), 0.2)) {
+            reporter.record(10, 50_000, 40);
+            reporter.tick();
+            Thread.sleep(SLEEP_INTERVAL);
+            assertEquals(1, zooKeeper.exists(instancePath, false).getVersion());
+
+            // Within the threshold: nothing is written
+            reporter.record(11, 55_000, 45);
+            reporter.tick();
+            Thread.sleep(SLEEP_INTERVAL);
+            assertEquals(1, zooKeeper.exists(instancePath, false).getVersion());
+
+            // Someone else marks the instance DEGRADED; the reporter's next write is rejected, and
+            // the retry keeps their health while adding the new load
+            zooKeeper.setData(instancePath, ServicePayload.builder("host4", 1234).health(ServicePayload.Health.DEGRADED).encode(), -1);
+            reporter.record(30, 50_000, 40);
+            reporter.tick();
+            Thread.sleep(SLEEP_INTERVAL);
+            assertEquals(2, zooKeeper.exists(instancePath, false).getVersion());
+            reporter.tick();
+            Thread.sleep(SLEEP_INTERVAL);
+            assertEquals(3, zooKeeper.exists(instancePath, false).getVersion());
+            ServicePayload written = new ServicePayload().wrap(zooKeeper.getData(instancePath, false, null));
+            assertEquals(30, written.inFlight());
+            assertEquals(ServicePayload.Health.DEGRADED, written.health());
+
+            // Until the service reports its own health again
+            reporter.setHealth(ServicePayload.Health.HEALTHY);
+            reporter.tick();
+            Thread.sleep(SLEEP_INTERVAL);
+            written.wrap(zooKeeper.getData(instancePath, false, null));
+            assertEquals(ServicePayload.Health.HEALTHY, written.health());
+        }
+    }
+
+    private static Map<String, Integer> pickCounts(ServiceResolver resolver, String serviceName) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            counts.merge(resolver.pick(serviceName), 1, Integer::sum);
+        }
+        return counts;
+    }
+
+    @Test
+    void untrackedServiceHasNoPickTest() {
+        ServiceResolver resolver = new ServiceResolver(registry, ServiceResolver.Strategy.ROUND_ROBIN);
+        assertNull(resolver.pick("service1"));
+    }
+}